@@ -0,0 +1,133 @@
+package nachos.ag;
+
+import java.util.HashMap;
+
+import nachos.machine.*;
+import nachos.security.*;
+import nachos.threads.*;
+
+/**
+ * Stress tests <tt>Alarm</tt> with many sleeping threads. Forks the given
+ * number of threads, each of which sleeps for a random time with
+ * <tt>waitUntil()</tt>, and checks that every thread sleeps at least as long
+ * as it asked, and that threads are woken (made ready) in order of wake time.
+ * Reports the real time the alarm's timer interrupt handler takes, up to the
+ * point where it yields.
+ *
+ * <p>
+ * The <tt>sleepers</tt> and <tt>maxDelay</tt> grader arguments set the number
+ * of threads and the longest sleep. So many threads need the <tt>park</tt>
+ * TCB backend. For example, from <tt>proj1</tt>, with a copy
+ * of <tt>nachos.conf</tt> that sets <tt>TCB.backend = park</tt>:
+ *
+ * <pre>
+ * java nachos.machine.Machine -[] park.conf -- nachos.ag.AlarmStressGrader -# sleepers=10000
+ * </pre>
+ */
+public class AlarmStressGrader extends BasicTestGrader {
+	public void run() {
+		int numSleepers = getIntegerArgument("sleepers", 10000);
+		int maxDelay = getIntegerArgument("maxDelay", 200000);
+
+		finished = new Semaphore(0);
+
+		// time the alarm's handler up to the point where it yields
+		Machine.timer().setInterruptHandler(new Runnable() {
+			public void run() {
+				handlerStart = System.nanoTime();
+				ThreadedKernel.alarm.timerInterrupt();
+				stopHandlerTimer();
+			}
+		});
+
+		long startInterrupts = numTimerInterrupts;
+
+		for (int i = 0; i < numSleepers; i++)
+			new KThread(new Sleeper(1 + Lib.random(maxDelay))).setName(
+					"sleeper " + i).fork();
+
+		for (int i = 0; i < numSleepers; i++)
+			finished.P();
+
+		long interrupts = Math.max(1, numTimerInterrupts - startInterrupts);
+
+		System.out.println(getClass().getName() + ": " + numSleepers
+				+ " sleepers woken in order over " + interrupts
+				+ " timer interrupts");
+		System.out.println(getClass().getName() + ": "
+				+ (handlerTime / 1000000) + " ms in the timer handler, "
+				+ (handlerTime / interrupts) + " ns per timer interrupt");
+
+		done();
+	}
+
+	public void runningThread(KThread thread) {
+		stopHandlerTimer();
+
+		super.runningThread(thread);
+	}
+
+	private void stopHandlerTimer() {
+		if (handlerStart != 0) {
+			handlerTime += System.nanoTime() - handlerStart;
+			handlerStart = 0;
+		}
+	}
+
+	public void readyThread(KThread thread) {
+		super.readyThread(thread);
+
+		// the handler has finished waking threads and is yielding
+		if (thread == KThread.currentThread())
+			stopHandlerTimer();
+
+		// a sleeper being woken, rather than yielding or being forked
+		Long wakeTime = wakeTimes.get(thread);
+		if (wakeTime == null || thread == KThread.currentThread())
+			return;
+
+		wakeTimes.remove(thread);
+
+		assertTrue(Machine.timer().getTime() >= wakeTime,
+				"thread woke up too early");
+		assertTrue(wakeTime >= lastWakeTime, "thread woke up out of order");
+		lastWakeTime = wakeTime;
+	}
+
+	public void timerInterrupt(Privilege privilege, long time) {
+		super.timerInterrupt(privilege, time);
+
+		numTimerInterrupts++;
+	}
+
+	private class Sleeper implements Runnable {
+		Sleeper(int delay) {
+			this.delay = delay;
+		}
+
+		public void run() {
+			wakeTimes.put(KThread.currentThread(), Machine.timer().getTime()
+					+ delay);
+
+			ThreadedKernel.alarm.waitUntil(delay);
+
+			assertTrue(!wakeTimes.containsKey(KThread.currentThread()),
+					"thread woke up without being readied");
+
+			finished.V();
+		}
+
+		private int delay;
+	}
+
+	private Semaphore finished;
+
+	/** The time each sleeping thread asked to be woken. */
+	private HashMap<KThread, Long> wakeTimes = new HashMap<KThread, Long>();
+
+	private long lastWakeTime = 0;
+
+	private long numTimerInterrupts = 0;
+
+	private long handlerStart = 0, handlerTime = 0;
+}
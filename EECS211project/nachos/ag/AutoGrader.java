@@ -86,6 +86,13 @@ public class AutoGrader {
 		return value;
 	}
 
+	String getStringArgument(String key, String defaultValue) {
+		if (!testArgs.containsKey(key))
+			return defaultValue;
+
+		return getStringArgument(key);
+	}
+
 	int getIntegerArgument(String key) {
 		try {
 			return Integer.parseInt(getStringArgument(key));
@@ -97,6 +104,13 @@ public class AutoGrader {
 		}
 	}
 
+	int getIntegerArgument(String key, int defaultValue) {
+		if (!testArgs.containsKey(key))
+			return defaultValue;
+
+		return getIntegerArgument(key);
+	}
+
 	boolean getBooleanArgument(String key) {
 		String value = getStringArgument(key);
 
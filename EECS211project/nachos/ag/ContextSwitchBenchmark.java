@@ -0,0 +1,251 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Measures how quickly Nachos context switches between kernel threads. Each
+ * test forks a group of threads that keep handing the CPU to each other in a
+ * different way, and reports the context switches per second of real time and
+ * the simulated ticks per switch:
+ *
+ * <ul>
+ * <li><tt>yield</tt>: every thread calls <tt>KThread.yield()</tt> in a loop.
+ * <li><tt>semaphore</tt>: the threads form a ring and pass a token around it
+ * with <tt>Semaphore</tt>s, so every hand-off blocks one thread and wakes the
+ * next.
+ * <li><tt>lock</tt>: every thread repeatedly acquires a shared <tt>Lock</tt>,
+ * yields while holding it, and releases it.
+ * <li><tt>condition</tt>: all but one of the threads sleep on a shared
+ * <tt>Condition2</tt>, and the last one repeatedly wakes them all at once.
+ * <li><tt>communicator</tt>: half the threads speak and half listen on a shared
+ * <tt>Communicator</tt>.
+ * </ul>
+ *
+ * <p>
+ * The <tt>test</tt> grader argument picks one test (by default all of them
+ * are run), and <tt>threads</tt> and <tt>rounds</tt> set how many threads each
+ * test uses and how many times each thread goes around its loop. Running the
+ * suite with different <tt>TCB.backend</tt> or scheduler settings compares
+ * them. For example, from <tt>proj1</tt>:
+ *
+ * <pre>
+ * java nachos.machine.Machine -- nachos.ag.ContextSwitchBenchmark -# test=semaphore,threads=200,rounds=500
+ * </pre>
+ */
+public class ContextSwitchBenchmark extends AutoGrader {
+	void run() {
+		numThreads = getIntegerArgument("threads", 20);
+		numRounds = getIntegerArgument("rounds", 1000);
+		Lib.assertTrue(numThreads >= 2 && numRounds > 0);
+
+		String test = getStringArgument("test", "all");
+
+		System.out.println(getClass().getName() + ": "
+				+ Config.getString("TCB.backend", "monitor") + " backend, "
+				+ Config.getString("ThreadedKernel.scheduler") + ", "
+				+ numThreads + " threads, " + numRounds + " rounds");
+
+		if (test.equals("all") || test.equals("yield"))
+			runYieldTest();
+		if (test.equals("all") || test.equals("semaphore"))
+			runSemaphoreTest();
+		if (test.equals("all") || test.equals("lock"))
+			runLockTest();
+		if (test.equals("all") || test.equals("condition"))
+			runConditionTest();
+		if (test.equals("all") || test.equals("communicator"))
+			runCommunicatorTest();
+
+		kernel.terminate();
+	}
+
+	public void runningThread(KThread thread) {
+		super.runningThread(thread);
+
+		numSwitches++;
+	}
+
+	private void runYieldTest() {
+		start();
+		for (int i = 0; i < numThreads; i++) {
+			fork(new Runnable() {
+				public void run() {
+					for (int i = 0; i < numRounds; i++)
+						KThread.yield();
+				}
+			});
+		}
+		finish("yield");
+	}
+
+	private void runSemaphoreTest() {
+		final Semaphore[] turns = new Semaphore[numThreads];
+		for (int i = 0; i < numThreads; i++)
+			turns[i] = new Semaphore(0);
+
+		start();
+		for (int i = 0; i < numThreads; i++) {
+			final Semaphore turn = turns[i];
+			final Semaphore next = turns[(i + 1) % numThreads];
+
+			fork(new Runnable() {
+				public void run() {
+					for (int i = 0; i < numRounds; i++) {
+						turn.P();
+						next.V();
+					}
+				}
+			});
+		}
+		turns[0].V();
+		finish("semaphore");
+	}
+
+	private void runLockTest() {
+		final Lock lock = new Lock();
+
+		start();
+		for (int i = 0; i < numThreads; i++) {
+			fork(new Runnable() {
+				public void run() {
+					for (int i = 0; i < numRounds; i++) {
+						lock.acquire();
+						KThread.yield();
+						lock.release();
+					}
+				}
+			});
+		}
+		finish("lock");
+	}
+
+	private void runConditionTest() {
+		final Lock lock = new Lock();
+		final Condition2 condition = new Condition2(lock);
+		final int numWaiters = numThreads - 1;
+
+		generation = 0;
+		numAsleep = 0;
+
+		start();
+		for (int i = 0; i < numWaiters; i++) {
+			fork(new Runnable() {
+				public void run() {
+					lock.acquire();
+					for (int i = 0; i < numRounds; i++) {
+						int seen = generation;
+						numAsleep++;
+						while (generation == seen)
+							condition.sleep();
+					}
+					lock.release();
+				}
+			});
+		}
+		fork(new Runnable() {
+			public void run() {
+				lock.acquire();
+				for (int i = 0; i < numRounds; i++) {
+					// wait for every waiter to go back to sleep
+					while (numAsleep < numWaiters) {
+						lock.release();
+						KThread.yield();
+						lock.acquire();
+					}
+
+					numAsleep = 0;
+					generation++;
+					condition.wakeAll();
+				}
+				lock.release();
+			}
+		});
+		finish("condition");
+	}
+
+	private void runCommunicatorTest() {
+		final Communicator communicator = new Communicator();
+
+		start();
+		for (int i = 0; i < numThreads / 2; i++) {
+			fork(new Runnable() {
+				public void run() {
+					for (int i = 0; i < numRounds; i++)
+						communicator.speak(i);
+				}
+			});
+			fork(new Runnable() {
+				public void run() {
+					for (int i = 0; i < numRounds; i++)
+						communicator.listen();
+				}
+			});
+		}
+		finish("communicator");
+	}
+
+	/**
+	 * Start timing a test.
+	 */
+	private void start() {
+		numForked = 0;
+		finished = new Semaphore(0);
+
+		startTime = System.nanoTime();
+		startSwitches = numSwitches;
+		startTicks = privilege.stats.totalTicks;
+	}
+
+	/**
+	 * Fork a thread for the current test, which signals <tt>finished</tt>
+	 * when it returns.
+	 *
+	 * @param body the thread's work.
+	 */
+	private void fork(final Runnable body) {
+		final Semaphore done = finished;
+
+		new KThread(new Runnable() {
+			public void run() {
+				body.run();
+				done.V();
+			}
+		}).setName("benchmark thread " + numForked).fork();
+
+		numForked++;
+	}
+
+	/**
+	 * Wait for every thread of the current test to finish, and print its
+	 * results.
+	 *
+	 * @param name the name of the test.
+	 */
+	private void finish(String name) {
+		for (int i = 0; i < numForked; i++)
+			finished.P();
+
+		long elapsed = Math.max(1, System.nanoTime() - startTime);
+		long switches = numSwitches - startSwitches;
+		long ticks = privilege.stats.totalTicks - startTicks;
+
+		System.out.println(getClass().getName() + ": " + name + ": "
+				+ switches + " switches in " + (elapsed / 1000000) + " ms, "
+				+ (switches * 1000000000L / elapsed) + " switches/sec, "
+				+ (ticks / Math.max(1, switches)) + " ticks/switch");
+	}
+
+	private int numThreads, numRounds;
+
+	private int numForked;
+
+	private Semaphore finished;
+
+	private long numSwitches = 0;
+
+	private long startTime, startSwitches, startTicks;
+
+	/** Shared state for the condition variable test. */
+	private int generation, numAsleep;
+}
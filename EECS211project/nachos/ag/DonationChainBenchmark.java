@@ -0,0 +1,166 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Measures how the cost of priority donation grows with the length of a chain
+ * of lock holders and with the number of threads waiting on the locks. Builds
+ * a chain of threads (without forking them) in which each thread holds one
+ * lock queue and waits on the lock queue held by the previous thread, and
+ * gives each lock a number of extra waiters at the lowest priority. Then
+ * repeatedly raises and lowers the priority of the thread at the end of the
+ * chain, checking each time that the donation reaches the thread at the
+ * start of the chain, and reports the real time per donation and per link.
+ *
+ * <p>
+ * Finally, closes a chain into a cycle, as a deadlock would, and checks that
+ * donating through the cycle still terminates.
+ *
+ * <p>
+ * The <tt>length</tt>, <tt>waiters</tt> and <tt>rounds</tt> grader arguments
+ * set the longest chain, the most extra waiters per lock, and the donations
+ * timed for each chain. Chains of a quarter, a half and all of
+ * <tt>length</tt> are run, each with no extra waiters and with
+ * <tt>waiters</tt> extra waiters. For example, from <tt>proj1</tt>, with a
+ * copy of <tt>nachos.conf</tt> that uses the priority scheduler:
+ *
+ * <pre>
+ * java nachos.machine.Machine -[] prio.conf -- nachos.ag.DonationChainBenchmark -# length=400
+ * </pre>
+ */
+public class DonationChainBenchmark extends AutoGrader {
+	void run() {
+		// the lottery scheduler adds donations up instead
+		Lib.assertTrue(
+				ThreadedKernel.scheduler.getClass() == PriorityScheduler.class,
+				"this test requires priority scheduler");
+
+		int maxLength = getIntegerArgument("length", 400);
+		int maxWaiters = getIntegerArgument("waiters", 20);
+		numRounds = getIntegerArgument("rounds", 2000);
+		Lib.assertTrue(maxLength >= 4 && maxWaiters >= 0 && numRounds > 0);
+
+		scheduler = ThreadedKernel.scheduler;
+		boolean intStatus = Machine.interrupt().disable();
+
+		// warm up, so the first chain timed is not paying for compilation
+		reporting = false;
+		runChain(maxLength, maxWaiters);
+		reporting = true;
+
+		for (int length = maxLength / 4; length <= maxLength; length *= 2) {
+			runChain(length, 0);
+			runChain(length, maxWaiters);
+		}
+
+		runCycle(maxLength);
+
+		Machine.interrupt().restore(intStatus);
+
+		kernel.terminate();
+	}
+
+	/**
+	 * Time donations along a chain of lock holders.
+	 *
+	 * @param length the number of locks in the chain.
+	 * @param numWaiters the extra waiters on each lock.
+	 */
+	private void runChain(int length, int numWaiters) {
+		KThread[] chain = buildChain(length, numWaiters);
+		KThread first = chain[0], last = chain[length];
+
+		long startTime = System.nanoTime();
+
+		for (int i = 0; i < numRounds; i++) {
+			scheduler.setPriority(last, high);
+			Lib.assertTrue(scheduler.getEffectivePriority(first) == high,
+					"donation did not reach the start of the chain");
+
+			scheduler.setPriority(last, low);
+			Lib.assertTrue(scheduler.getEffectivePriority(first) == low,
+					"donation was not taken back from the start of the chain");
+		}
+
+		long elapsed = Math.max(1, System.nanoTime() - startTime);
+		long donations = 2L * numRounds;
+
+		if (!reporting)
+			return;
+
+		System.out.println(getClass().getName() + ": " + length + " locks, "
+				+ (length * (numWaiters + 1)) + " waiters: "
+				+ (elapsed / donations) + " ns per donation, "
+				+ (elapsed / (donations * length)) + " ns per link");
+	}
+
+	/**
+	 * Donate through a chain of lock holders that has been closed into a
+	 * cycle, and check that it terminates.
+	 *
+	 * @param length the number of locks in the cycle.
+	 */
+	private void runCycle(int length) {
+		KThread[] chain = buildChain(length, 0);
+
+		// the first thread waits on the last lock, closing the cycle
+		ThreadQueue lastLock = scheduler.newThreadQueue(true);
+		lastLock.acquire(chain[length]);
+		lastLock.waitForAccess(chain[0]);
+
+		scheduler.setPriority(chain[length / 2], high);
+		for (int i = 0; i <= length; i++)
+			Lib.assertTrue(scheduler.getEffectivePriority(chain[i]) == high,
+					"donation did not go around the cycle");
+
+		scheduler.setPriority(chain[length / 2], low);
+
+		System.out.println(getClass().getName() + ": " + length
+				+ " locks in a cycle: donation terminated");
+	}
+
+	/**
+	 * Build a chain of threads at the lowest priority, where
+	 * <tt>chain[i]</tt> holds a lock that <tt>chain[i + 1]</tt> waits on.
+	 *
+	 * @param length the number of locks in the chain.
+	 * @param numWaiters the extra waiters on each lock.
+	 * @return the threads in the chain.
+	 */
+	private KThread[] buildChain(int length, int numWaiters) {
+		KThread[] chain = new KThread[length + 1];
+
+		for (int i = 0; i <= length; i++) {
+			chain[i] = newThread("chain thread " + i);
+
+			if (i > 0) {
+				ThreadQueue lock = scheduler.newThreadQueue(true);
+				lock.acquire(chain[i - 1]);
+
+				for (int j = 0; j < numWaiters; j++)
+					lock.waitForAccess(newThread("waiter " + j + " on lock " + i));
+
+				lock.waitForAccess(chain[i]);
+			}
+		}
+
+		return chain;
+	}
+
+	private KThread newThread(String name) {
+		KThread thread = new KThread().setName(name);
+		scheduler.setPriority(thread, low);
+		return thread;
+	}
+
+	private Scheduler scheduler;
+
+	private int numRounds;
+
+	private boolean reporting;
+
+	private static final int low = PriorityScheduler.priorityMinimum;
+
+	private static final int high = PriorityScheduler.priorityMaximum;
+}
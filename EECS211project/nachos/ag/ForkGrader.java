@@ -0,0 +1,186 @@
+package nachos.ag;
+
+import java.util.Arrays;
+import java.util.Vector;
+
+import nachos.machine.*;
+import nachos.security.*;
+
+/**
+ * Checks that <tt>fork()</tt> gives the child a copy-on-write copy of the
+ * parent's memory. Whatever executable is run with <tt>-x</tt> is replaced by
+ * a small built-in program, which stores 1 in a data page and forks. The
+ * parent then stores 3 in the same word, which copies the page, and joins the
+ * child, which has the kernel store the child's exit status into a second,
+ * still shared data page. The child reads the word, stores 2 in it, and exits
+ * with ten times what it read plus what it stored; the parent exits with a
+ * hundred times what it stored plus the child's status. Both exit statuses
+ * are checked when Nachos exits.
+ *
+ * <p>
+ * Works with any kernel that supports <tt>fork()</tt>. For example, from
+ * <tt>proj2</tt> or <tt>proj3</tt>:
+ *
+ * <pre>
+ * java nachos.machine.Machine -- nachos.ag.ForkGrader -x halt.coff
+ * </pre>
+ */
+public class ForkGrader extends AutoGrader {
+	void run() {
+		privilege.addExitNotificationHandler(new Runnable() {
+			public void run() {
+				report();
+			}
+		});
+
+		kernel.run();
+		kernel.terminate();
+	}
+
+	/**
+	 * Check the exit statuses of the child and the parent.
+	 */
+	void report() {
+		System.out.println(getClass().getName() + ": exit statuses " + exits);
+
+		Lib.assertTrue(exits.size() == 2 && exits.get(0) == 12
+				&& exits.get(1) == 312, "fork() did not copy on write");
+	}
+
+	public boolean exceptionHandler(Privilege privilege) {
+		super.exceptionHandler(privilege);
+
+		Processor processor = Machine.processor();
+		if (processor.readRegister(Processor.regCause) == Processor.exceptionSyscall
+				&& processor.readRegister(Processor.regV0) == syscallExit)
+			exits.add(processor.readRegister(Processor.regA0));
+
+		return true;
+	}
+
+	public Coff createLoader(OpenFile file) {
+		return new Program();
+	}
+
+	/**
+	 * The built-in program: one page of code, then two pages of data.
+	 */
+	private static class Program extends Coff {
+		Program() {
+			entryPoint = 0;
+			sections = new CoffSection[] {
+					new Section(this, ".text", true, true, 1, 0),
+					new Section(this, ".data", false, false, 2, 1) };
+		}
+	}
+
+	private static class Section extends CoffSection {
+		Section(Coff coff, String name, boolean executable, boolean readOnly,
+				int numPages, int firstVPN) {
+			super(coff, name, executable, readOnly, numPages, firstVPN);
+		}
+
+		public void loadPage(int spn, int ppn) {
+			byte[] memory = Machine.processor().getMemory();
+			int paddr = ppn * Processor.pageSize;
+
+			Arrays.fill(memory, paddr, paddr + Processor.pageSize,
+					(byte) 0);
+
+			if (isReadOnly()) {
+				for (int i = 0; i < code.length; i++)
+					Lib.bytesFromInt(memory, paddr + i * 4, code[i]);
+			}
+
+			Machine.processor().invalidatePage(ppn);
+		}
+	}
+
+	private static int iType(int op, int rs, int rt, int imm) {
+		return (op << 26) | (rs << 21) | (rt << 16) | (imm & 0xFFFF);
+	}
+
+	private static int rType(int rs, int rt, int rd, int shift, int funct) {
+		return (rs << 21) | (rt << 16) | (rd << 11) | (shift << 6) | funct;
+	}
+
+	private static int addiu(int rt, int rs, int imm) {
+		return iType(0x09, rs, rt, imm);
+	}
+
+	private static int lw(int rt, int offset, int base) {
+		return iType(0x23, base, rt, offset);
+	}
+
+	private static int sw(int rt, int offset, int base) {
+		return iType(0x2B, base, rt, offset);
+	}
+
+	private static int beq(int rs, int rt, int offset) {
+		return iType(0x04, rs, rt, offset);
+	}
+
+	private static int addu(int rd, int rs, int rt) {
+		return rType(rs, rt, rd, 0, 0x21);
+	}
+
+	private static int sll(int rd, int rt, int shift) {
+		return rType(0, rt, rd, shift, 0x00);
+	}
+
+	private static final int syscall = 0x0000000C, nop = 0;
+
+	private static final int syscallExit = 1, syscallJoin = 3,
+			syscallFork = 13;
+
+	private static final int zero = 0, v0 = 2, a0 = 4, a1 = 5, t0 = 8,
+			t1 = 9, t2 = 10, t3 = 11, t4 = 12, s0 = 16, s1 = 17, s2 = 18;
+
+	/** The offset of the child's code from the branch delay slot. */
+	private static final int childOffset = 19;
+
+	private static final int[] code = {
+			addiu(s0, zero, 1 * Processor.pageSize), // first data page
+			addiu(s1, zero, 2 * Processor.pageSize), // second data page
+			addiu(t0, zero, 1),
+			sw(t0, 0, s0),
+			sw(zero, 0, s1),
+			addiu(v0, zero, syscallFork),
+			syscall,
+			beq(v0, zero, childOffset),
+			nop,
+
+			// parent: store 3, join the child, exit(100 * 3 + status)
+			addu(s2, v0, zero),
+			addiu(t0, zero, 3),
+			sw(t0, 0, s0),
+			addu(a0, s2, zero),
+			addu(a1, s1, zero),
+			addiu(v0, zero, syscallJoin),
+			syscall,
+			lw(t1, 0, s0),
+			lw(t2, 0, s1),
+			sll(t3, t1, 6),
+			sll(t4, t1, 5),
+			addu(t3, t3, t4),
+			sll(t4, t1, 2),
+			addu(t3, t3, t4),
+			addu(a0, t3, t2),
+			addiu(v0, zero, syscallExit),
+			syscall,
+			nop,
+
+			// child: read 1, store 2, exit(10 * 1 + 2)
+			lw(t1, 0, s0),
+			addiu(t0, zero, 2),
+			sw(t0, 0, s0),
+			lw(t2, 0, s0),
+			sll(t3, t1, 3),
+			sll(t4, t1, 1),
+			addu(t3, t3, t4),
+			addu(a0, t3, t2),
+			addiu(v0, zero, syscallExit),
+			syscall };
+
+	private Vector<Integer> exits = new Vector<Integer>();
+}
@@ -0,0 +1,72 @@
+package nachos.ag;
+
+import nachos.machine.*;
+
+/**
+ * Measures the cost of simulated time passing while many device interrupts
+ * are outstanding. Before the kernel runs, schedules a few hundred periodic
+ * interrupts standing in for the network, console, timer and elevator
+ * devices, then advances simulated time one tick at a time and reports the
+ * ticks and interrupts handled per second of real time.
+ *
+ * <p>
+ * For example, from <tt>proj1</tt>:
+ *
+ * <pre>
+ * java nachos.machine.Machine -- nachos.ag.InterruptBenchmark
+ * </pre>
+ */
+public class InterruptBenchmark extends AutoGrader {
+	void run() {
+		for (int i = 0; i < numTimers; i++)
+			new PeriodicInterrupt(deviceNames[i % deviceNames.length],
+					1 + Lib.random(maxPeriod)).schedule();
+
+		long startTime = System.nanoTime();
+
+		for (int i = 0; i < numTicks; i++)
+			privilege.interrupt.tick(false);
+
+		long elapsed = Math.max(1, System.nanoTime() - startTime);
+
+		System.out.println(getClass().getName() + ": " + numTimers
+				+ " timers, " + numTicks + " ticks, " + numHandled
+				+ " interrupts in " + (elapsed / 1000000) + " ms");
+		System.out.println(getClass().getName() + ": "
+				+ (numTicks * 1000000000L / elapsed) + " ticks/sec, "
+				+ (numHandled * 1000000000L / elapsed) + " interrupts/sec");
+
+		kernel.terminate();
+	}
+
+	private class PeriodicInterrupt implements Runnable {
+		PeriodicInterrupt(String type, int period) {
+			this.type = type;
+			this.period = period;
+		}
+
+		void schedule() {
+			privilege.interrupt.schedule(period, type, this);
+		}
+
+		public void run() {
+			numHandled++;
+			schedule();
+		}
+
+		private String type;
+
+		private int period;
+	}
+
+	private long numHandled = 0;
+
+	private static final int numTimers = 500;
+
+	private static final int maxPeriod = 2000;
+
+	private static final int numTicks = 2000000;
+
+	private static final String[] deviceNames = { "network", "console",
+			"timer", "elevator" };
+}
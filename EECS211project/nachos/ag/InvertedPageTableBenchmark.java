@@ -0,0 +1,108 @@
+package nachos.ag;
+
+import java.util.Random;
+
+import nachos.machine.*;
+import nachos.vm.*;
+
+/**
+ * Measures how the cost of looking up a translation in an inverted page table
+ * changes with the amount of physical memory and the number of processes.
+ * For each size of physical memory, from 1024 pages up to the given maximum
+ * (quadrupling each time), fills an inverted page table with processes of a
+ * fixed number of pages each, and then looks up random virtual pages of
+ * random processes, as the TLB miss handler does, half of which are not
+ * resident. Checks each lookup against the expected result, and reports the
+ * real time per lookup.
+ *
+ * <p>
+ * The benchmark creates its own inverted page tables, so it does not matter
+ * which kernel Nachos is configured with. The <tt>pages</tt>,
+ * <tt>processPages</tt> and <tt>lookups</tt> grader arguments set the most
+ * physical pages, the resident pages per process, and the lookups per size.
+ * For example, from <tt>proj1</tt>:
+ *
+ * <pre>
+ * java nachos.machine.Machine -- nachos.ag.InvertedPageTableBenchmark -# pages=262144
+ * </pre>
+ */
+public class InvertedPageTableBenchmark extends AutoGrader {
+	void run() {
+		int maxPages = getIntegerArgument("pages", 262144);
+		processPages = getIntegerArgument("processPages", 16);
+		numLookups = getIntegerArgument("lookups", 4000000);
+		Lib.assertTrue(maxPages >= 1024 && processPages > 0 && numLookups > 0);
+
+		// warm up, so the first size timed is not paying for compilation
+		reporting = false;
+		runSize(1024);
+		reporting = true;
+
+		for (int numPages = 1024; numPages <= maxPages; numPages *= 4)
+			runSize(numPages);
+
+		kernel.terminate();
+	}
+
+	/**
+	 * Fill an inverted page table of the specified size and time lookups in
+	 * it.
+	 *
+	 * @param numPages the number of physical pages.
+	 */
+	private void runSize(int numPages) {
+		InvertedPageTable table = new InvertedPageTable(numPages);
+		int numProcesses = numPages / processPages;
+
+		// process p has every other virtual page resident, starting at 0
+		for (int ppn = 0; ppn < numProcesses * processPages; ppn++) {
+			int pid = ppn / processPages;
+			int vpn = 2 * (ppn % processPages);
+
+			table.insert(pid, new TranslationEntry(vpn, ppn, true, false,
+					false, false));
+		}
+
+		Random random = new Random(0);
+		int[] pids = new int[numLookups], vpns = new int[numLookups];
+		for (int i = 0; i < numLookups; i++) {
+			pids[i] = random.nextInt(numProcesses);
+			vpns[i] = random.nextInt(2 * processPages);
+		}
+
+		int numHits = 0;
+
+		long startTime = System.nanoTime();
+
+		for (int i = 0; i < numLookups; i++) {
+			TranslationEntry entry = table.lookup(pids[i], vpns[i]);
+
+			if (entry != null) {
+				Lib.assertTrue(entry.vpn == vpns[i]
+						&& entry.ppn == pids[i] * processPages + vpns[i] / 2,
+						"wrong translation");
+				numHits++;
+			}
+		}
+
+		long elapsed = Math.max(1, System.nanoTime() - startTime);
+
+		int expectedHits = 0;
+		for (int i = 0; i < numLookups; i++)
+			if (vpns[i] % 2 == 0)
+				expectedHits++;
+		Lib.assertTrue(numHits == expectedHits, "resident page not found");
+
+		if (!reporting)
+			return;
+
+		System.out.println(getClass().getName() + ": " + numPages
+				+ " pages, " + numProcesses + " processes: "
+				+ (elapsed / numLookups) + " ns per lookup, " + numHits
+				+ " of " + numLookups + " resident");
+	}
+
+	private int processPages, numLookups;
+
+	private boolean reporting;
+}
@@ -0,0 +1,122 @@
+package nachos.ag;
+
+import java.util.HashSet;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Stress tests <tt>KThread.join()</tt> with many threads joining the same
+ * thread. Forks a target thread and then many joiner threads that each join
+ * it. Once every joiner has called <tt>join()</tt>, the target yields a number
+ * of times and finishes. Checks that no joiner returns from
+ * <tt>join()</tt> before the target has finished. While the target yields,
+ * samples how many threads are on the ready queue, and counts how many times
+ * a joiner that has called <tt>join()</tt> was switched to. Checks that the
+ * ready queue never holds more than the target and the idle thread, and that
+ * there are no more switches to joiners than there are joiners, as when
+ * joiners sleep rather than spin.
+ *
+ * <p>
+ * The <tt>joiners</tt> and <tt>rounds</tt> grader arguments set the number of
+ * joiners and the number of times the target yields. For example, from
+ * <tt>proj1</tt>:
+ *
+ * <pre>
+ * java nachos.machine.Machine -- nachos.ag.JoinStressGrader -# joiners=200
+ * </pre>
+ */
+public class JoinStressGrader extends BasicTestGrader {
+	public void run() {
+		numJoiners = getIntegerArgument("joiners", 200);
+		final int numRounds = getIntegerArgument("rounds", 100);
+		Lib.assertTrue(numJoiners > 0 && numRounds > 0);
+
+		final Semaphore finished = new Semaphore(0);
+
+		target = new KThread(new Runnable() {
+			public void run() {
+				// let every joiner reach join() first
+				while (numJoining < numJoiners)
+					KThread.yield();
+
+				for (int i = 0; i < numRounds; i++) {
+					KThread.yield();
+					maxReadyDuringJoin = Math.max(maxReadyDuringJoin,
+							readyThreads.size());
+				}
+
+				targetFinished = true;
+			}
+		}).setName("join target");
+		target.fork();
+
+		for (int i = 0; i < numJoiners; i++) {
+			KThread joiner = new KThread(new Runnable() {
+				public void run() {
+					joining.add(KThread.currentThread());
+					numJoining++;
+					target.join();
+
+					assertTrue(targetFinished,
+							"join() returned before the thread finished");
+					finished.V();
+				}
+			}).setName("joiner " + i);
+
+			joiner.fork();
+		}
+
+		for (int i = 0; i < numJoiners; i++)
+			finished.P();
+
+		System.out.println(getClass().getName() + ": " + numJoiners
+				+ " joiners, at most " + maxReadyDuringJoin
+				+ " ready threads while the target ran, " + numJoinerSwitches
+				+ " switches to joiners");
+
+		assertTrue(maxReadyDuringJoin <= maxReady,
+				"the ready queue grew while threads were joining");
+		assertTrue(numJoinerSwitches <= numJoiners,
+				"joiners were switched to while waiting in join()");
+
+		done();
+	}
+
+	public void readyThread(KThread thread) {
+		super.readyThread(thread);
+
+		readyThreads.add(thread);
+	}
+
+	public void runningThread(KThread thread) {
+		super.runningThread(thread);
+
+		readyThreads.remove(thread);
+		if (!targetFinished && joining.contains(thread))
+			numJoinerSwitches++;
+	}
+
+	private int numJoiners;
+
+	private KThread target;
+
+	/** The number of joiners that have called <tt>join()</tt>. */
+	private int numJoining = 0;
+
+	private boolean targetFinished = false;
+
+	/** The joiners that have called <tt>join()</tt>. */
+	private HashSet<KThread> joining = new HashSet<KThread>();
+
+	/** The threads on the ready queue. */
+	private HashSet<KThread> readyThreads = new HashSet<KThread>();
+
+	private int maxReadyDuringJoin = 0;
+
+	/** The switches to joiners in <tt>join()</tt> while the target ran. */
+	private long numJoinerSwitches = 0;
+
+	/** The most ready threads expected: the target and the idle thread. */
+	private static final int maxReady = 2;
+}
@@ -0,0 +1,132 @@
+package nachos.ag;
+
+import java.util.HashMap;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Compares the lottery scheduler with the round-robin and priority schedulers
+ * for throughput and fairness. For each scheduler, creates the given number
+ * of threads (without forking them), giving thread <i>i</i> a weight of
+ * <i>1 + i % 8</i>: that many tickets under the lottery scheduler, and a
+ * priority of one less under the priority scheduler. The threads wait in one
+ * queue, and are repeatedly taken off it and put back, as a ready queue does
+ * when threads take turns running. Reports the real time per round, and the
+ * share of the rounds won by the threads of each weight next to their share
+ * of the tickets.
+ *
+ * <p>
+ * The schedulers are created by the benchmark, so it does not matter which
+ * one Nachos is configured with. The <tt>threads</tt> and <tt>rounds</tt>
+ * grader arguments set the size of the queue and the number of rounds. For
+ * example, from <tt>proj1</tt>:
+ *
+ * <pre>
+ * java nachos.machine.Machine -- nachos.ag.LotteryBenchmark -# threads=10000
+ * </pre>
+ */
+public class LotteryBenchmark extends AutoGrader {
+	void run() {
+		numThreads = getIntegerArgument("threads", 1000);
+		numRounds = getIntegerArgument("rounds", 500000);
+		Lib.assertTrue(numThreads >= numWeights && numRounds > 0);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		// warm up, so the first scheduler timed is not paying for compilation
+		for (int i = 0; i < 2; i++) {
+			runScheduler(new RoundRobinScheduler(), false);
+			runScheduler(new PriorityScheduler(), false);
+			runScheduler(new LotteryScheduler(), false);
+		}
+
+		runScheduler(new RoundRobinScheduler(), true);
+		runScheduler(new PriorityScheduler(), true);
+		runScheduler(new LotteryScheduler(), true);
+
+		Machine.interrupt().restore(intStatus);
+
+		kernel.terminate();
+	}
+
+	/**
+	 * Cycle threads through a queue from the specified scheduler.
+	 *
+	 * @param scheduler the scheduler to test.
+	 * @param report <tt>true</tt> to print the results.
+	 */
+	private void runScheduler(Scheduler scheduler, boolean report) {
+		boolean lottery = scheduler instanceof LotteryScheduler;
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+
+		long totalWeight = 0;
+		for (int i = 0; i < numThreads; i++) {
+			KThread thread = new KThread().setName("queued thread " + i);
+			int weight = weightOf(i);
+
+			if (lottery)
+				scheduler.setPriority(thread, weight);
+			else if (scheduler instanceof PriorityScheduler)
+				scheduler.setPriority(thread, weight - 1);
+
+			weights.put(thread, weight);
+			totalWeight += weight;
+			queue.waitForAccess(thread);
+		}
+
+		long[] wins = new long[numWeights + 1];
+
+		long startTime = System.nanoTime();
+
+		for (int i = 0; i < numRounds; i++) {
+			KThread thread = queue.nextThread();
+			Lib.assertTrue(thread != null, "queue ran out of threads");
+
+			wins[weights.get(thread)]++;
+			queue.waitForAccess(thread);
+		}
+
+		long elapsed = Math.max(1, System.nanoTime() - startTime);
+
+		weights.clear();
+
+		if (!report)
+			return;
+
+		System.out.println(getClass().getName() + ": "
+				+ scheduler.getClass().getName() + ", " + numThreads
+				+ " threads, " + numRounds + " rounds in "
+				+ (elapsed / 1000000) + " ms, " + (elapsed / numRounds)
+				+ " ns per round");
+
+		StringBuffer shares = new StringBuffer();
+		for (int weight = 1; weight <= numWeights; weight++) {
+			long weightTotal = 0;
+			for (int i = 0; i < numThreads; i++)
+				if (weightOf(i) == weight)
+					weightTotal += weight;
+
+			shares.append(" " + weight + ":" + percent(wins[weight], numRounds)
+					+ "/" + percent(weightTotal, totalWeight));
+		}
+
+		System.out.println(getClass().getName() + ": "
+				+ "won/ticket share by weight:" + shares);
+	}
+
+	private static int weightOf(int i) {
+		return 1 + i % numWeights;
+	}
+
+	private static String percent(long part, long whole) {
+		return (part * 1000 / whole) / 10.0 + "%";
+	}
+
+	private int numThreads, numRounds;
+
+	/** The weight of each queued thread. */
+	private HashMap<KThread, Integer> weights = new HashMap<KThread, Integer>();
+
+	private static final int numWeights = 8;
+}
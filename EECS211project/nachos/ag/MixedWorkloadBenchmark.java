@@ -0,0 +1,163 @@
+package nachos.ag;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * Measures how responsive interactive user processes stay while CPU-bound
+ * user processes run alongside them. Starts a number of CPU-bound processes
+ * and a number of interactive ones, which mostly wait for the console, and
+ * reports, in simulated ticks, how long interactive processes wait to run
+ * after becoming ready (their response time), how long each kind of process
+ * takes to finish, and the number of context switches. Also reports the time
+ * each process ran for and how many times it was switched to.
+ *
+ * <p>
+ * The <tt>cpu</tt> and <tt>interactive</tt> grader arguments set the number
+ * of each kind of process, and <tt>cpuProgram</tt> and
+ * <tt>interactiveProgram</tt> the programs they run (by default
+ * <tt>matmult.coff</tt>, and <tt>echo.coff</tt> with a few arguments). Running
+ * the benchmark with different <tt>ThreadedKernel.scheduler</tt> settings
+ * compares them. For example, from <tt>proj2</tt>, with a copy of
+ * <tt>nachos.conf</tt> that uses <tt>nachos.threads.MLFQScheduler</tt>:
+ *
+ * <pre>
+ * java nachos.machine.Machine -[] mlfq.conf -- nachos.ag.MixedWorkloadBenchmark -# cpu=2,interactive=2
+ * </pre>
+ */
+public class MixedWorkloadBenchmark extends AutoGrader {
+	void run() {
+		numCPU = getIntegerArgument("cpu", 2);
+		numInteractive = getIntegerArgument("interactive", 2);
+		String cpuProgram = getStringArgument("cpuProgram", "matmult.coff");
+		String interactiveProgram = getStringArgument("interactiveProgram",
+				"echo.coff");
+		Lib.assertTrue(numCPU + numInteractive > 0);
+
+		privilege.addExitNotificationHandler(new Runnable() {
+			public void run() {
+				report();
+			}
+		});
+
+		startTime = Machine.timer().getTime();
+
+		// start the CPU-bound processes first, so they are already running
+		for (int i = 0; i < numCPU; i++)
+			start(cpuProgram, new String[] { cpuProgram }, false);
+
+		for (int i = 0; i < numInteractive; i++)
+			start(interactiveProgram, new String[] { interactiveProgram,
+					"interactive", "process", "" + i }, true);
+
+		KThread.finish();
+	}
+
+	private void start(String name, String[] args, boolean interactive) {
+		UserProcess process = UserProcess.newUserProcess();
+		if (interactive)
+			interactiveProcesses.add(process);
+
+		Lib.assertTrue(process.execute(name, args), "could not run " + name);
+	}
+
+	public void readyThread(KThread thread) {
+		super.readyThread(thread);
+
+		if (isInteractive(thread))
+			readyTimes.put(thread, Machine.timer().getTime());
+	}
+
+	public void runningThread(KThread thread) {
+		super.runningThread(thread);
+
+		numSwitches++;
+
+		Long readyTime = readyTimes.remove(thread);
+		if (readyTime != null) {
+			long wait = Machine.timer().getTime() - readyTime;
+
+			numResponses++;
+			totalResponseTime += wait;
+			maxResponseTime = Math.max(maxResponseTime, wait);
+		}
+	}
+
+	public void finishingCurrentThread() {
+		KThread thread = KThread.currentThread();
+
+		if (thread instanceof UThread) {
+			long turnaround = Machine.timer().getTime() - startTime;
+
+			reportThread(thread);
+
+			if (isInteractive(thread)) {
+				numInteractiveDone++;
+				interactiveTurnaround += turnaround;
+			}
+			else {
+				numCPUDone++;
+				cpuTurnaround += turnaround;
+			}
+		}
+
+		super.finishingCurrentThread();
+	}
+
+	private void reportThread(KThread thread) {
+		System.out.println(getClass().getName() + ": " + thread + " ran "
+				+ thread.getRunTime() + " ticks over " + thread.getNumSwitches()
+				+ " switches");
+	}
+
+	private boolean isInteractive(KThread thread) {
+		return thread instanceof UThread
+				&& interactiveProcesses.contains(((UThread) thread).process);
+	}
+
+	private void report() {
+		String name = getClass().getName();
+		long elapsed = Machine.timer().getTime() - startTime;
+
+		// the last process to exit halts the machine before it finishes
+		if (KThread.currentThread() instanceof UThread)
+			reportThread(KThread.currentThread());
+
+		interactiveTurnaround += (numInteractive - numInteractiveDone) * elapsed;
+		cpuTurnaround += (numCPU - numCPUDone) * elapsed;
+
+		System.out.println(name + ": "
+				+ Config.getString("ThreadedKernel.scheduler") + ", "
+				+ elapsed + " ticks, "
+				+ numSwitches + " context switches");
+		System.out.println(name + ": interactive response time: "
+				+ (totalResponseTime / Math.max(1, numResponses))
+				+ " ticks average, " + maxResponseTime + " ticks worst, over "
+				+ numResponses + " wakeups");
+		System.out.println(name + ": turnaround: interactive "
+				+ (interactiveTurnaround / Math.max(1, numInteractive))
+				+ " ticks average, CPU-bound "
+				+ (cpuTurnaround / Math.max(1, numCPU)) + " ticks average");
+	}
+
+	private int numCPU, numInteractive;
+
+	private HashSet<UserProcess> interactiveProcesses = new HashSet<UserProcess>();
+
+	/** When each interactive thread waiting to run became ready. */
+	private HashMap<KThread, Long> readyTimes = new HashMap<KThread, Long>();
+
+	private long startTime;
+
+	private long numSwitches = 0;
+
+	private long numResponses = 0, totalResponseTime = 0, maxResponseTime = 0;
+
+	private int numInteractiveDone = 0, numCPUDone = 0;
+
+	private long interactiveTurnaround = 0, cpuTurnaround = 0;
+}
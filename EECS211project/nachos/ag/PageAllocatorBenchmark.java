@@ -0,0 +1,247 @@
+package nachos.ag;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import nachos.machine.*;
+import nachos.userprog.*;
+
+/**
+ * Measures the cost of allocating and freeing physical pages through
+ * <tt>UserKernel</tt>, with physical memory much larger than a user program
+ * needs. Three patterns are timed, each repeatedly filling all of physical
+ * memory and emptying it again:
+ *
+ * <ul>
+ * <li>allocating the pages for one process at a time, as
+ * <tt>UserProcess.loadSections()</tt> does, and freeing them a page at a time,
+ * with the processes freed in random order;
+ * <li>the same, but allocating into and freeing from one reused array;
+ * <li>allocating runs of physically contiguous pages of random lengths, freeing
+ * a random half of them, and allocating runs into the holes left behind until
+ * no run fits.
+ * </ul>
+ *
+ * Checks that no page is handed out twice and that the free page count is
+ * right after each round, and reports the real time per page.
+ *
+ * <p>
+ * The <tt>pages</tt> and <tt>rounds</tt> grader arguments set the number of
+ * pages per process and the number of times memory is filled. The amount of
+ * physical memory is set with the <tt>-m</tt> switch. For example, from
+ * <tt>proj2</tt>:
+ *
+ * <pre>
+ * java -Xmx1g nachos.machine.Machine -m 262144 -- nachos.ag.PageAllocatorBenchmark -# rounds=20
+ * </pre>
+ */
+public class PageAllocatorBenchmark extends AutoGrader {
+	void run() {
+		processPages = getIntegerArgument("pages", 32);
+		numRounds = getIntegerArgument("rounds", 20);
+		Lib.assertTrue(processPages > 0 && numRounds > 0);
+
+		numPhysPages = Machine.processor().getNumPhysPages();
+		Lib.assertTrue(UserKernel.getNumFreePages() == numPhysPages,
+				"pages already in use");
+
+		inUse = new boolean[numPhysPages];
+
+		// warm up, so the first pattern timed is not paying for compilation
+		reporting = false;
+		runProcesses(false);
+		runProcesses(true);
+		runContiguous();
+		reporting = true;
+
+		runProcesses(false);
+		runProcesses(true);
+		runContiguous();
+
+		kernel.terminate();
+	}
+
+	/**
+	 * Fill memory a process at a time, and empty it in random order.
+	 *
+	 * @param batch <tt>true</tt> to allocate into and free from a reused array,
+	 * rather than allocating a new array per process and freeing a page at a
+	 * time.
+	 */
+	private void runProcesses(boolean batch) {
+		int numProcesses = numPhysPages / processPages;
+		int[][] processes = new int[numProcesses][];
+		int[] all = new int[numProcesses * processPages];
+		int[] order = new int[numProcesses];
+
+		long elapsed = 0;
+
+		for (int round = 0; round < numRounds; round++) {
+			long startTime = System.nanoTime();
+
+			for (int p = 0; p < numProcesses; p++) {
+				if (batch) {
+					Lib.assertTrue(UserKernel.allocatePages(all, p
+							* processPages, processPages), "out of pages");
+				}
+				else {
+					processes[p] = UserKernel.allocatePages(processPages);
+					Lib.assertTrue(processes[p] != null, "out of pages");
+				}
+			}
+
+			elapsed += System.nanoTime() - startTime;
+
+			for (int p = 0; p < numProcesses; p++) {
+				for (int i = 0; i < processPages; i++)
+					take(batch ? all[p * processPages + i] : processes[p][i]);
+			}
+			shuffle(order);
+
+			startTime = System.nanoTime();
+
+			for (int p = 0; p < numProcesses; p++) {
+				int process = order[p];
+
+				if (batch) {
+					UserKernel.releasePages(all, process * processPages,
+							processPages);
+				}
+				else {
+					for (int i = 0; i < processPages; i++)
+						UserKernel.releasePage(processes[process][i]);
+				}
+			}
+
+			elapsed += System.nanoTime() - startTime;
+
+			Arrays.fill(inUse, false);
+			checkAllFree();
+		}
+
+		report(batch ? "batch per process" : "array per process, page at a time",
+				elapsed, 2L * numRounds * numProcesses * processPages);
+	}
+
+	/**
+	 * Fill memory with contiguous runs, free half of them, and fill the holes.
+	 */
+	private void runContiguous() {
+		int maxRuns = numPhysPages + 1;
+		int[] firsts = new int[maxRuns], lengths = new int[maxRuns];
+
+		long elapsed = 0, numPages = 0, numHoleRuns = 0;
+
+		for (int round = 0; round < numRounds; round++) {
+			int numRuns = 0;
+
+			long startTime = System.nanoTime();
+			for (;;) {
+				int length = 1 + random.nextInt(2 * processPages);
+				int first = UserKernel.allocateContiguousPages(length);
+				if (first == -1)
+					break;
+
+				firsts[numRuns] = first;
+				lengths[numRuns++] = length;
+				numPages += length;
+			}
+			elapsed += System.nanoTime() - startTime;
+
+			for (int r = 0; r < numRuns; r++)
+				for (int i = 0; i < lengths[r]; i++)
+					take(firsts[r] + i);
+
+			// free a random half of the runs
+			startTime = System.nanoTime();
+			int kept = 0;
+			for (int r = 0; r < numRuns; r++) {
+				if (random.nextBoolean()) {
+					UserKernel.releaseContiguousPages(firsts[r], lengths[r]);
+					numPages += lengths[r];
+					for (int i = 0; i < lengths[r]; i++)
+						inUse[firsts[r] + i] = false;
+				}
+				else {
+					firsts[kept] = firsts[r];
+					lengths[kept++] = lengths[r];
+				}
+			}
+			elapsed += System.nanoTime() - startTime;
+			numRuns = kept;
+
+			// fill the holes with process-sized runs
+			startTime = System.nanoTime();
+			int holeStart = numRuns;
+			for (;;) {
+				int first = UserKernel.allocateContiguousPages(processPages);
+				if (first == -1)
+					break;
+
+				firsts[numRuns] = first;
+				lengths[numRuns++] = processPages;
+				numPages += processPages;
+			}
+			elapsed += System.nanoTime() - startTime;
+			numHoleRuns += numRuns - holeStart;
+
+			for (int r = holeStart; r < numRuns; r++)
+				for (int i = 0; i < lengths[r]; i++)
+					take(firsts[r] + i);
+
+			startTime = System.nanoTime();
+			for (int r = 0; r < numRuns; r++)
+				UserKernel.releaseContiguousPages(firsts[r], lengths[r]);
+			elapsed += System.nanoTime() - startTime;
+
+			for (int r = 0; r < numRuns; r++)
+				numPages += lengths[r];
+
+			Arrays.fill(inUse, false);
+			checkAllFree();
+		}
+
+		report("contiguous runs (" + (numHoleRuns / numRounds)
+				+ " runs refilled per round)", elapsed, numPages);
+	}
+
+	private void take(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPhysPages && !inUse[ppn],
+				"page " + ppn + " allocated twice");
+		inUse[ppn] = true;
+	}
+
+	private void checkAllFree() {
+		Lib.assertTrue(UserKernel.getNumFreePages() == numPhysPages,
+				"pages were not freed");
+	}
+
+	private void shuffle(int[] order) {
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+
+		for (int i = order.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int temp = order[i];
+			order[i] = order[j];
+			order[j] = temp;
+		}
+	}
+
+	private void report(String pattern, long elapsed, long numPages) {
+		if (!reporting)
+			return;
+
+		System.out.println(getClass().getName() + ": " + numPhysPages
+				+ " pages, " + pattern + ": " + (elapsed / 1000000) + " ms, "
+				+ (elapsed / Math.max(1, numPages)) + " ns per page");
+	}
+
+	private int processPages, numRounds, numPhysPages;
+
+	private boolean[] inUse;
+
+	private boolean reporting;
+
+	private Random random = new Random(0);
+}
@@ -0,0 +1,59 @@
+package nachos.ag;
+
+import nachos.machine.*;
+
+/**
+ * Measures how quickly the processor executes user instructions. Runs the
+ * shell program (given with <tt>-x</tt>), skipping the kernel self test, and
+ * reports the user instructions executed per second of real time when Nachos
+ * exits.
+ *
+ * <p>
+ * For example, from <tt>proj2</tt>:
+ *
+ * <pre>
+ * java nachos.machine.Machine -- nachos.ag.ProcessorBenchmark -x sort.coff
+ * </pre>
+ */
+public class ProcessorBenchmark extends AutoGrader {
+	void run() {
+		startTicks = privilege.stats.userTicks;
+		startTime = System.nanoTime();
+
+		privilege.addExitNotificationHandler(new Runnable() {
+			public void run() {
+				report(Math.max(1, System.nanoTime() - startTime));
+			}
+		});
+
+		kernel.run();
+		kernel.terminate();
+	}
+
+	/**
+	 * Print the results of the benchmark.
+	 * 
+	 * @param elapsed the real time the program ran for, in nanoseconds.
+	 */
+	void report(long elapsed) {
+		long instructions = (privilege.stats.userTicks - startTicks)
+				/ Stats.UserTick;
+
+		System.out.println(getClass().getName() + ": " + instructions
+				+ " instructions in " + (elapsed / 1000000) + " ms, "
+				+ rate(instructions, elapsed) + " instructions/sec");
+	}
+
+	/**
+	 * Return how many times per second something happened.
+	 * 
+	 * @param count the number of times it happened.
+	 * @param elapsed the real time taken, in nanoseconds.
+	 * @return the rate per second.
+	 */
+	static long rate(long count, long elapsed) {
+		return count * 1000000000L / elapsed;
+	}
+
+	private long startTicks, startTime;
+}
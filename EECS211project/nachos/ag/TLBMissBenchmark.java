@@ -0,0 +1,40 @@
+package nachos.ag;
+
+import nachos.machine.*;
+
+/**
+ * Measures how quickly the processor and kernel together service TLB misses.
+ * Runs the shell program (given with <tt>-x</tt>) under a kernel that uses
+ * the TLB, skipping the kernel self test, and reports the TLB misses and user
+ * instructions executed per second of real time when Nachos exits.
+ *
+ * <p>
+ * For example, from <tt>proj3</tt>:
+ *
+ * <pre>
+ * java nachos.machine.Machine -- nachos.ag.TLBMissBenchmark -x matmult.coff
+ * </pre>
+ */
+public class TLBMissBenchmark extends ProcessorBenchmark {
+	void init() {
+		Lib.assertTrue(Machine.processor().hasTLB(),
+				"this benchmark requires a TLB");
+	}
+
+	void run() {
+		startMisses = privilege.stats.numTLBMisses;
+
+		super.run();
+	}
+
+	void report(long elapsed) {
+		super.report(elapsed);
+
+		long misses = privilege.stats.numTLBMisses - startMisses;
+
+		System.out.println(getClass().getName() + ": " + misses
+				+ " TLB misses, " + rate(misses, elapsed) + " misses/sec");
+	}
+
+	private int startMisses;
+}
@@ -0,0 +1,118 @@
+package nachos.ag;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Measures how quickly the scheduler's ready queue chooses threads when
+ * thousands of threads are waiting in it. Creates the given number of threads
+ * (without forking them) at random priorities, puts them all in a queue from
+ * <tt>ThreadedKernel.scheduler.newThreadQueue(false)</tt>, and then repeatedly
+ * takes the next thread off the queue and puts it back, as a ready queue does
+ * when threads take turns running. Every tenth round also changes the
+ * priority of a thread taken off the queue. Priorities are drawn from the
+ * range the scheduler accepts: <tt>priorityMinimum</tt> to
+ * <tt>priorityMaximum</tt> of <tt>LotteryScheduler</tt> or
+ * <tt>PriorityScheduler</tt>. For the priority scheduler, which is the only
+ * strict-priority scheduler, also checks that each thread taken off the queue
+ * has an effective priority no lower than any waiting thread's. Reports the
+ * operations per second of real time.
+ *
+ * <p>
+ * The <tt>threads</tt> and <tt>rounds</tt> grader arguments set the size of
+ * the queue and the number of threads taken off it. For example, from
+ * <tt>proj1</tt>, with a copy of <tt>nachos.conf</tt> that uses the priority
+ * scheduler:
+ *
+ * <pre>
+ * java nachos.machine.Machine -[] prio.conf -- nachos.ag.ThreadQueueBenchmark -# threads=5000
+ * </pre>
+ */
+public class ThreadQueueBenchmark extends AutoGrader {
+	void run() {
+		int numThreads = getIntegerArgument("threads", 5000);
+		int numRounds = getIntegerArgument("rounds", 500000);
+		Lib.assertTrue(numThreads > 0 && numRounds > 0);
+
+		Scheduler scheduler = ThreadedKernel.scheduler;
+
+		if (scheduler instanceof LotteryScheduler) {
+			minPriority = LotteryScheduler.priorityMinimum;
+			maxPriority = LotteryScheduler.priorityMaximum;
+		}
+		else {
+			minPriority = PriorityScheduler.priorityMinimum;
+			maxPriority = PriorityScheduler.priorityMaximum;
+		}
+
+		// only the priority scheduler always chooses the highest priority
+		boolean strict = scheduler.getClass() == PriorityScheduler.class;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread[] threads = new KThread[numThreads];
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+
+		// how many waiting threads have each effective priority
+		int[] numAtPriority = strict ? new int[maxPriority + 1] : null;
+
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new KThread().setName("queued thread " + i);
+			scheduler.setPriority(threads[i], randomPriority());
+			queue.waitForAccess(threads[i]);
+			if (strict)
+				numAtPriority[scheduler.getEffectivePriority(threads[i])]++;
+		}
+
+		long startTime = System.nanoTime();
+
+		for (int i = 0; i < numRounds; i++) {
+			KThread thread = queue.nextThread();
+			Lib.assertTrue(thread != null, "queue ran out of threads");
+
+			if (strict) {
+				int priority = scheduler.getEffectivePriority(thread);
+				for (int p = priority + 1; p <= maxPriority; p++)
+					Lib.assertTrue(numAtPriority[p] == 0,
+							"a higher priority thread was waiting");
+
+				if (i % 10 == 0) {
+					numAtPriority[priority]--;
+					scheduler.setPriority(thread, randomPriority());
+					numAtPriority[scheduler.getEffectivePriority(thread)]++;
+				}
+			}
+			else if (i % 10 == 0) {
+				scheduler.setPriority(thread, randomPriority());
+			}
+
+			queue.waitForAccess(thread);
+		}
+
+		long elapsed = Math.max(1, System.nanoTime() - startTime);
+
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println(getClass().getName() + ": "
+				+ Config.getString("ThreadedKernel.scheduler") + ", "
+				+ numThreads + " threads, " + numRounds + " rounds in "
+				+ (elapsed / 1000000) + " ms");
+		System.out.println(getClass().getName() + ": "
+				+ (elapsed / numRounds) + " ns per round, "
+				+ (numRounds * 1000000000L / elapsed) + " rounds/sec");
+
+		kernel.terminate();
+	}
+
+	/**
+	 * Return a random priority between <tt>minPriority</tt> and
+	 * <tt>maxPriority</tt>, inclusive.
+	 */
+	private int randomPriority() {
+		return (int) (minPriority + Lib.random() * ((long) maxPriority
+				- minPriority + 1));
+	}
+
+	/** The range of priorities the scheduler under test accepts. */
+	private int minPriority, maxPriority;
+}
@@ -4,9 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.ArrayList;
+import java.util.Collections;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +51,8 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+
+		tracing = Lib.test(dbgInt);
 	}
 
 	/**
@@ -119,16 +119,70 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Advance the simulated time while the CPU is idle. The time advances by
+	 * as many kernel ticks as can pass before the next pending interrupt is
+	 * due, exactly as if the idle thread had enabled interrupts that many
+	 * times, so the next time interrupts are enabled the interrupt occurs at
+	 * the same tick it would have otherwise.
+	 * 
+	 * <p>
+	 * This must only be called when no thread could run before the next
+	 * interrupt. Nothing is skipped while interrupt debugging is enabled, so
+	 * that the per-tick trace is unchanged.
+	 */
+	public void idle() {
+		if (tracing || numPending == 0)
+			return;
+
+		Stats stats = privilege.stats;
+
+		long skipped = (nextDue - stats.totalTicks - 1) / Stats.KernelTick;
+		if (skipped > 0) {
+			stats.kernelTicks += skipped * Stats.KernelTick;
+			stats.totalTicks += skipped * Stats.KernelTick;
+		}
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-		Lib.debug(dbgInt, "Scheduling the " + type
-				+ " interrupt handler at time = " + time);
+		PendingInterrupt toOccur = freeList;
+		if (toOccur != null)
+			freeList = toOccur.next;
+		else
+			toOccur = new PendingInterrupt();
+
+		toOccur.time = time;
+		toOccur.type = type;
+		toOccur.handler = handler;
+		toOccur.id = numPendingInterruptsCreated++;
+
+		if (tracing)
+			System.out.println("Scheduling the " + type
+					+ " interrupt handler at time = " + time);
+
+		// insert after every interrupt in the slot due no later than this one
+		int slot = (int) (time & slotMask);
+		if (wheel[slot] == null || wheel[slot].time > time) {
+			toOccur.next = wheel[slot];
+			wheel[slot] = toOccur;
+			occupied[slot >>> 6] |= 1L << slot;
+		}
+		else {
+			PendingInterrupt prev = wheel[slot];
+			while (prev.next != null && prev.next.time <= time)
+				prev = prev.next;
+
+			toOccur.next = prev.next;
+			prev.next = toOccur;
+		}
 
-		pending.add(toOccur);
+		numPending++;
+		if (time < nextDue)
+			nextDue = time;
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -143,46 +197,153 @@ public final class Interrupt {
 			stats.totalTicks += Stats.UserTick;
 		}
 
-		if (Lib.test(dbgInt))
+		if (tracing)
 			System.out.println("== Tick " + stats.totalTicks + " ==");
 
+		// nothing to do until the next interrupt is due
+		if (stats.totalTicks < nextDue && !tracing) {
+			enabled = true;
+			return;
+		}
+
 		enabled = false;
 		checkIfDue();
 		enabled = true;
 	}
 
+	private void tick(boolean inKernelMode, int count) {
+		Lib.assertTrue(count > 0);
+
+		// keep the per-tick trace intact when debugging interrupts
+		if (tracing) {
+			for (int i = 0; i < count; i++)
+				tick(inKernelMode);
+			return;
+		}
+
+		Stats stats = privilege.stats;
+
+		long skipped = count - 1;
+		if (inKernelMode) {
+			Lib.assertTrue(skipped * Stats.KernelTick < ticksUntilDue());
+			stats.kernelTicks += skipped * Stats.KernelTick;
+			stats.totalTicks += skipped * Stats.KernelTick;
+		}
+		else {
+			Lib.assertTrue(skipped * Stats.UserTick < ticksUntilDue());
+			stats.userTicks += skipped * Stats.UserTick;
+			stats.totalTicks += skipped * Stats.UserTick;
+		}
+
+		tick(inKernelMode);
+	}
+
+	private long ticksUntilDue() {
+		if (numPending == 0)
+			return Long.MAX_VALUE;
+
+		return nextDue - privilege.stats.totalTicks;
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
 		Lib.assertTrue(disabled());
 
-		if (Lib.test(dbgInt))
+		if (tracing)
 			print();
 
-		if (pending.isEmpty())
+		if (nextDue > time)
 			return;
 
-		if (((PendingInterrupt) pending.first()).time > time)
-			return;
+		if (tracing)
+			System.out.println("Invoking interrupt handlers at time = " + time);
 
-		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+		while (nextDue <= time) {
+			int slot = (int) (nextDue & slotMask);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+			PendingInterrupt next = wheel[slot];
+			Lib.assertTrue(next != null && next.time == nextDue);
 
-			Lib.assertTrue(next.time <= time);
+			wheel[slot] = next.next;
+			if (wheel[slot] == null)
+				occupied[slot >>> 6] &= ~(1L << slot);
+
+			numPending--;
+			nextDue = findNextDue(next.time);
+
+			String type = next.type;
+			Runnable handler = next.handler;
+
+			next.type = null;
+			next.handler = null;
+			next.next = freeList;
+			freeList = next;
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			if (tracing)
+				System.out.println("  " + type);
+
+			handler.run();
+		}
+
+		if (tracing)
+			System.out.println("  (end of list)");
+	}
+
+	/**
+	 * Find the time the earliest pending interrupt is due.
+	 * 
+	 * @param from a time no later than any pending interrupt.
+	 * @return the time the earliest pending interrupt is due, or
+	 * <tt>Long.MAX_VALUE</tt> if there are none.
+	 */
+	private long findNextDue(long from) {
+		if (numPending == 0)
+			return Long.MAX_VALUE;
+
+		// the first slot after from whose first interrupt is due within one
+		// turn of the wheel holds the earliest interrupt
+		int start = (int) (from & slotMask);
+		for (int slot = nextOccupied(start); slot != -1; slot = nextOccupied(slot + 1)) {
+			if (wheel[slot].time == from + (slot - start))
+				return wheel[slot].time;
+		}
+		for (int slot = nextOccupied(0); slot != -1 && slot < start; slot = nextOccupied(slot + 1)) {
+			if (wheel[slot].time == from + (slot - start + numSlots))
+				return wheel[slot].time;
+		}
+
+		// everything is more than one turn away
+		long earliest = Long.MAX_VALUE;
+		for (int slot = nextOccupied(0); slot != -1; slot = nextOccupied(slot + 1))
+			earliest = Math.min(earliest, wheel[slot].time);
+
+		return earliest;
+	}
+
+	/**
+	 * Find the first non-empty slot at or after the specified slot.
+	 * 
+	 * @param slot the slot to start at.
+	 * @return the first non-empty slot, or -1 if all later slots are empty.
+	 */
+	private int nextOccupied(int slot) {
+		if (slot >= numSlots)
+			return -1;
 
-			next.handler.run();
+		int word = slot >>> 6;
+		long bits = occupied[word] & (-1L << slot);
+
+		while (bits == 0) {
+			if (++word == occupied.length)
+				return -1;
+			bits = occupied[word];
 		}
 
-		Lib.debug(dbgInt, "  (end of list)");
+		return (word << 6) + Long.numberOfTrailingZeros(bits);
 	}
 
 	private void print() {
@@ -190,8 +351,14 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
+		ArrayList<PendingInterrupt> sorted = new ArrayList<PendingInterrupt>();
+		for (int slot = 0; slot < numSlots; slot++) {
+			for (PendingInterrupt toOccur = wheel[slot]; toOccur != null; toOccur = toOccur.next)
+				sorted.add(toOccur);
+		}
+		Collections.sort(sorted);
+
+		for (PendingInterrupt toOccur : sorted) {
 			System.out.println("  " + toOccur.type + ", scheduled at "
 					+ toOccur.time);
 		}
@@ -199,17 +366,12 @@ public final class Interrupt {
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
-		}
-
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
-
+	/**
+	 * A pending interrupt. Records are reused once their handler has been
+	 * invoked, so <tt>schedule()</tt> does not normally allocate.
+	 */
+	private class PendingInterrupt implements Comparable<PendingInterrupt> {
+		public int compareTo(PendingInterrupt toOccur) {
 			// can't return 0 for unequal objects, so check all fields
 			if (time < toOccur.time)
 				return -1;
@@ -229,6 +391,9 @@ public final class Interrupt {
 
 		Runnable handler;
 
+		/** The next interrupt in the same slot, or on the free list. */
+		PendingInterrupt next;
+
 		private long id;
 	}
 
@@ -238,7 +403,33 @@ public final class Interrupt {
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	/**
+	 * Pending interrupts, hashed by the low bits of the time they are due.
+	 * Each slot is a list ordered by due time, and then by when the interrupt
+	 * was scheduled.
+	 */
+	private PendingInterrupt[] wheel = new PendingInterrupt[numSlots];
+
+	/** One bit per slot, set if the slot is non-empty. */
+	private long[] occupied = new long[numSlots / 64];
+
+	private int numPending = 0;
+
+	/** The time the earliest pending interrupt is due. */
+	private long nextDue = Long.MAX_VALUE;
+
+	/** Interrupt records available for reuse. */
+	private PendingInterrupt freeList = null;
+
+	private static final int numSlots = 1024;
+
+	private static final long slotMask = numSlots - 1;
+
+	/**
+	 * <tt>true</tt> if interrupt debugging output is enabled, read once when
+	 * the interrupt controller is created.
+	 */
+	private final boolean tracing;
 
 	private static final char dbgInt = 'i';
 
@@ -250,5 +441,13 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public void tick(boolean inKernelMode, int count) {
+			Interrupt.this.tick(inKernelMode, count);
+		}
+
+		public long ticksUntilDue() {
+			return Interrupt.this.ticksUntilDue();
+		}
 	}
 }
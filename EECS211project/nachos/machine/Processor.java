@@ -3,6 +3,7 @@
 package nachos.machine;
 
 import nachos.security.*;
+import java.util.Arrays;
 
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
@@ -44,11 +45,35 @@ public final class Processor {
 			registers[i] = 0;
 
 		mainMemory = new byte[pageSize * numPhysPages];
+		decodeCache = new long[numPhysPages][];
+		blockCache = new BoundInstruction[numPhysPages][][];
+
+		String engine = Config.getString("Processor.engine", "interpreter");
+		Lib.assertTrue(engine.equals("interpreter") || engine.equals("blocks"),
+				"unknown Processor.engine: " + engine);
+		usingBlocks = engine.equals("blocks");
+
+		traceProcessor = Lib.test(dbgProcessor);
+		traceDisassemble = Lib.test(dbgDisassemble);
+		traceFullDisassemble = Lib.test(dbgFullDisassemble);
+		tracing = traceProcessor || traceDisassemble || traceFullDisassemble;
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", 4);
+			Lib.assertTrue(tlbSize > 0, "Processor.tlbSize must be positive");
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
+
+			// at least twice as many buckets as entries, to keep chains short
+			int numBuckets = 1;
+			while (numBuckets < tlbSize * 2)
+				numBuckets *= 2;
+
+			tlbBuckets = new int[numBuckets];
+			Arrays.fill(tlbBuckets, -1);
+			tlbNext = new int[tlbSize];
 		}
 		else {
 			translations = null;
@@ -81,9 +106,20 @@ public final class Processor {
 
 	/**
 	 * Start executing instructions at the current PC. Never returns.
+	 * 
+	 * <p>
+	 * If <tt>Processor.engine</tt> is set to <tt>blocks</tt> in
+	 * <tt>nachos.conf</tt>, straight-line runs of instructions are translated
+	 * once into objects with their operands already decoded, and executed
+	 * together between checks for pending interrupts, instead of being
+	 * decoded and interpreted one at a time. Simulated time advances exactly
+	 * as it does in the interpreter, so interrupts still occur at the same
+	 * ticks. The interpreter is always used while processor debugging output
+	 * is enabled.
 	 */
 	public void run() {
-		Lib.debug(dbgProcessor, "starting program in current thread");
+		if (traceProcessor)
+			System.out.println("starting program in current thread");
 
 		registers[regNextPC] = registers[regPC] + 4;
 
@@ -91,6 +127,21 @@ public final class Processor {
 
 		Instruction inst = new Instruction();
 
+		if (tracing)
+			runTraced(inst);
+		else if (usingBlocks)
+			runBlocks(inst);
+		else
+			runUntraced(inst);
+	}
+
+	/**
+	 * Interpret instructions one at a time, printing the debugging output
+	 * enabled on the command line. Never returns.
+	 * 
+	 * @param inst the instruction state to execute with.
+	 */
+	private void runTraced(Instruction inst) {
 		while (true) {
 			try {
 				inst.run();
@@ -103,6 +154,210 @@ public final class Processor {
 		}
 	}
 
+	/**
+	 * Interpret instructions one at a time, with no debugging output. This is
+	 * the same as <tt>runTraced()</tt>, except that instructions are fetched
+	 * without checking whether to print them. Never returns.
+	 * 
+	 * @param inst the instruction state to execute with.
+	 */
+	private void runUntraced(Instruction inst) {
+		while (true) {
+			try {
+				inst.run(predecode(translate(registers[regPC], 4, false)));
+			}
+			catch (MipsException e) {
+				e.handle();
+			}
+
+			privilege.interrupt.tick(false);
+		}
+	}
+
+	/**
+	 * Execute basic blocks starting at the current PC. Never returns.
+	 * 
+	 * <p>
+	 * Each block is run until it ends, until the PC leaves it, or until the
+	 * next pending interrupt would become due, and the ticks for the completed
+	 * instructions are then charged at once. If an instruction raises an
+	 * exception, the ticks for the instructions before it are charged before
+	 * the exception is handled, just as the interpreter would have.
+	 * 
+	 * @param inst the instruction state to execute with.
+	 */
+	private void runBlocks(Instruction inst) {
+		while (true) {
+			int executed = 0;
+
+			try {
+				int pc = registers[regPC];
+				int paddr = translate(pc, 4, false);
+				int ppn = paddr / pageSize;
+				int word = (paddr % pageSize) / 4;
+
+				BoundInstruction[][] pageBlocks = blockCache[ppn];
+				if (pageBlocks == null) {
+					pageBlocks = new BoundInstruction[pageSize / 4][];
+					blockCache[ppn] = pageBlocks;
+				}
+
+				BoundInstruction[] block = pageBlocks[word];
+				if (block == null) {
+					block = buildBlock(paddr, inst);
+					pageBlocks[word] = block;
+				}
+
+				long budget = privilege.interrupt.ticksUntilDue();
+				if (budget != Long.MAX_VALUE)
+					budget = (budget + Stats.UserTick - 1) / Stats.UserTick;
+				int limit = (int) Math.max(1, Math.min(block.length, budget));
+
+				while (true) {
+					block[executed].run();
+					executed++;
+					pc += 4;
+
+					// stop if we branched, or a store modified this page
+					if (executed == limit || registers[regPC] != pc
+							|| blockCache[ppn] != pageBlocks)
+						break;
+				}
+			}
+			catch (MipsException e) {
+				if (executed > 0)
+					privilege.interrupt.tick(false, executed);
+
+				e.handle();
+
+				privilege.interrupt.tick(false);
+				continue;
+			}
+
+			privilege.interrupt.tick(false, executed);
+		}
+	}
+
+	/**
+	 * Translate the basic block starting at the specified physical address. A
+	 * block extends to the end of its page, to the delay slot of the first
+	 * branch, or to the first instruction that always raises an exception,
+	 * whichever comes first.
+	 * 
+	 * @param paddr the physical address of the first instruction.
+	 * @param inst the instruction state to interpret untranslated
+	 * instructions with.
+	 * @return the translated instructions in the block.
+	 */
+	private BoundInstruction[] buildBlock(int paddr, Instruction inst) {
+		int words = pageSize / 4 - (paddr % pageSize) / 4;
+		BoundInstruction[] block = new BoundInstruction[words];
+		int length = 0;
+
+		while (length < words) {
+			long predecoded = predecode(paddr + length * 4);
+			Mips info = Mips.decodeTable[(int) (predecoded >>> 32) - 1];
+			block[length++] = bind(predecoded, inst);
+
+			if (Lib.test(Mips.BRANCH, info.flags)) {
+				// include the delay slot
+				if (length < words) {
+					block[length] = bind(predecode(paddr + length * 4), inst);
+					length++;
+				}
+				break;
+			}
+
+			if (info.operation == Mips.SYSCALL
+					|| info.operation == Mips.UNIMPL
+					|| info.operation == Mips.INVALID)
+				break;
+		}
+
+		if (length < words)
+			block = Arrays.copyOf(block, length);
+
+		return block;
+	}
+
+	/**
+	 * Translate a predecoded instruction. Arithmetic and logical instructions,
+	 * loads and stores of whole bytes, halfwords and words, and branches and
+	 * jumps are bound to objects that execute them directly; every other
+	 * instruction is interpreted.
+	 * 
+	 * @param predecoded the predecoded instruction.
+	 * @param inst the instruction state to interpret with.
+	 * @return the translated instruction.
+	 */
+	private BoundInstruction bind(long predecoded, Instruction inst) {
+		Mips info = Mips.decodeTable[(int) (predecoded >>> 32) - 1];
+
+		switch (info.operation) {
+		case Mips.ADD:
+		case Mips.SUB:
+		case Mips.SLL:
+		case Mips.SRA:
+		case Mips.SRL:
+		case Mips.SLT:
+		case Mips.AND:
+		case Mips.OR:
+		case Mips.NOR:
+		case Mips.XOR:
+		case Mips.LUI:
+		case Mips.MFLO:
+		case Mips.MFHI:
+			return new BoundArithmetic(info, (int) predecoded);
+
+		case Mips.LOAD:
+			return new BoundLoad(info, (int) predecoded);
+
+		case Mips.STORE:
+			return new BoundStore(info, (int) predecoded);
+
+		case Mips.JUMP:
+		case Mips.BEQ:
+		case Mips.BNE:
+		case Mips.BLEZ:
+		case Mips.BGTZ:
+		case Mips.BLTZ:
+		case Mips.BGEZ:
+			return new BoundBranch(info, (int) predecoded);
+
+		default:
+			return new BoundInterpreted(predecoded, inst);
+		}
+	}
+
+	/**
+	 * Return the predecoded instruction at the specified physical address,
+	 * decoding it and filling the decode cache if necessary.
+	 * 
+	 * @param paddr the word-aligned physical address of the instruction.
+	 * @return the predecoded instruction.
+	 */
+	private long predecode(int paddr) {
+		long[] decoded = decodeCache[paddr / pageSize];
+		if (decoded == null) {
+			decoded = new long[pageSize / 4];
+			decodeCache[paddr / pageSize] = decoded;
+		}
+
+		int word = (paddr % pageSize) / 4;
+
+		long predecoded = decoded[word];
+		if (predecoded != 0) {
+			privilege.stats.numDecodeHits++;
+		}
+		else {
+			privilege.stats.numDecodeMisses++;
+			predecoded = Mips.predecode(Lib.bytesToInt(mainMemory, paddr));
+			decoded[word] = predecoded;
+		}
+
+		return predecoded;
+	}
+
 	/**
 	 * Read and return the contents of the specified CPU register.
 	 * 
@@ -176,7 +431,8 @@ public final class Processor {
 	}
 
 	/**
-	 * Return the number of entries in this processor's TLB.
+	 * Return the number of entries in this processor's TLB. This is set by
+	 * <tt>Processor.tlbSize</tt> in <tt>nachos.conf</tt>, and defaults to 4.
 	 * 
 	 * @return the number of entries in this processor's TLB.
 	 */
@@ -213,7 +469,57 @@ public final class Processor {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
+		if (translations[number].valid)
+			unlinkTLBEntry(number);
+
 		translations[number] = new TranslationEntry(entry);
+
+		if (translations[number].valid)
+			linkTLBEntry(number);
+	}
+
+	/**
+	 * Add a valid TLB entry to the chain for its VPN. Chains are kept in order
+	 * of TLB index, so that if several entries map the same page, the lookup
+	 * finds the one a scan of the TLB would have.
+	 * 
+	 * @param number the index into the TLB.
+	 */
+	private void linkTLBEntry(int number) {
+		int bucket = translations[number].vpn & (tlbBuckets.length - 1);
+
+		if (tlbBuckets[bucket] == -1 || tlbBuckets[bucket] > number) {
+			tlbNext[number] = tlbBuckets[bucket];
+			tlbBuckets[bucket] = number;
+			return;
+		}
+
+		int i = tlbBuckets[bucket];
+		while (tlbNext[i] != -1 && tlbNext[i] < number)
+			i = tlbNext[i];
+
+		tlbNext[number] = tlbNext[i];
+		tlbNext[i] = number;
+	}
+
+	/**
+	 * Remove a valid TLB entry from the chain for its VPN.
+	 * 
+	 * @param number the index into the TLB.
+	 */
+	private void unlinkTLBEntry(int number) {
+		int bucket = translations[number].vpn & (tlbBuckets.length - 1);
+
+		if (tlbBuckets[bucket] == number) {
+			tlbBuckets[bucket] = tlbNext[number];
+			return;
+		}
+
+		int i = tlbBuckets[bucket];
+		while (tlbNext[i] != number)
+			i = tlbNext[i];
+
+		tlbNext[i] = tlbNext[number];
 	}
 
 	/**
@@ -236,6 +542,22 @@ public final class Processor {
 		return mainMemory;
 	}
 
+	/**
+	 * Discard any predecoded instructions cached for the specified physical
+	 * page. The processor keeps decoded copies of the instructions it fetches,
+	 * so the kernel must call this whenever it modifies the contents of a page
+	 * through the array returned by <tt>getMemory()</tt>. Stores made by user
+	 * programs invalidate the cache automatically.
+	 * 
+	 * @param ppn the physical page whose contents changed.
+	 */
+	public void invalidatePage(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+		decodeCache[ppn] = null;
+		blockCache[ppn] = null;
+	}
+
 	/**
 	 * Concatenate a page number and an offset into an address.
 	 * 
@@ -290,14 +612,15 @@ public final class Processor {
 	 */
 	private int translate(int vaddr, int size, boolean writing)
 			throws MipsException {
-		if (Lib.test(dbgProcessor))
+		if (traceProcessor)
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
 
 		// check alignment
 		if ((vaddr & (size - 1)) != 0) {
-			Lib.debug(dbgProcessor, "\t\talignment error");
-			throw new MipsException(exceptionAddressError, vaddr);
+			if (traceProcessor)
+				System.out.println("\t\talignment error");
+			throw exception.raise(exceptionAddressError, vaddr);
 		}
 
 		// calculate virtual page number and offset from the virtual address
@@ -311,38 +634,42 @@ public final class Processor {
 			if (translations == null || vpn >= translations.length
 					|| translations[vpn] == null || !translations[vpn].valid) {
 				privilege.stats.numPageFaults++;
-				Lib.debug(dbgProcessor, "\t\tpage fault");
-				throw new MipsException(exceptionPageFault, vaddr);
+				if (traceProcessor)
+					System.out.println("\t\tpage fault");
+				throw exception.raise(exceptionPageFault, vaddr);
 			}
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look through the valid TLB entries that hash with this vpn
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
+			for (int i = tlbBuckets[vpn & (tlbBuckets.length - 1)]; i != -1; i = tlbNext[i]) {
+				if (translations[i].vpn == vpn) {
 					entry = translations[i];
 					break;
 				}
 			}
 			if (entry == null) {
 				privilege.stats.numTLBMisses++;
-				Lib.debug(dbgProcessor, "\t\tTLB miss");
-				throw new MipsException(exceptionTLBMiss, vaddr);
+				if (traceProcessor)
+					System.out.println("\t\tTLB miss");
+				throw exception.raise(exceptionTLBMiss, vaddr);
 			}
 		}
 
 		// check if trying to write a read-only page
 		if (entry.readOnly && writing) {
-			Lib.debug(dbgProcessor, "\t\tread-only exception");
-			throw new MipsException(exceptionReadOnly, vaddr);
+			if (traceProcessor)
+				System.out.println("\t\tread-only exception");
+			throw exception.raise(exceptionReadOnly, vaddr);
 		}
 
 		// check if physical page number is out of range
 		int ppn = entry.ppn;
 		if (ppn < 0 || ppn >= numPhysPages) {
-			Lib.debug(dbgProcessor, "\t\tbad ppn");
-			throw new MipsException(exceptionBusError, vaddr);
+			if (traceProcessor)
+				System.out.println("\t\tbad ppn");
+			throw exception.raise(exceptionBusError, vaddr);
 		}
 
 		// set used and dirty bits as appropriate
@@ -352,7 +679,7 @@ public final class Processor {
 
 		int paddr = (ppn * pageSize) + offset;
 
-		if (Lib.test(dbgProcessor))
+		if (traceProcessor)
 			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
 		return paddr;
 	}
@@ -367,7 +694,7 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private int readMem(int vaddr, int size) throws MipsException {
-		if (Lib.test(dbgProcessor))
+		if (traceProcessor)
 			System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size);
 
@@ -376,7 +703,7 @@ public final class Processor {
 		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
 				size);
 
-		if (Lib.test(dbgProcessor))
+		if (traceProcessor)
 			System.out.println("\t\tvalue read=0x"
 					+ Lib.toHexString(value, size * 2));
 
@@ -393,14 +720,26 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private void writeMem(int vaddr, int size, int value) throws MipsException {
-		if (Lib.test(dbgProcessor))
+		if (traceProcessor)
 			System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size + ", value=0x"
 					+ Lib.toHexString(value, size * 2));
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true);
+
+		Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+		// the access is aligned, so it touches exactly one instruction word
+		int ppn = paddr / pageSize;
+		long[] decoded = decodeCache[ppn];
+		if (decoded != null) {
+			decoded[(paddr % pageSize) / 4] = 0;
+
+			if (blockCache[ppn] != null)
+				blockCache[ppn] = null;
+		}
 	}
 
 	/**
@@ -548,7 +887,16 @@ public final class Processor {
 	private boolean usingTLB;
 
 	/** Number of TLB entries. */
-	private int tlbSize = 4;
+	private int tlbSize;
+
+	/**
+	 * The first valid TLB entry in each hash chain, or -1, indexed by the low
+	 * bits of the VPN. The number of buckets is a power of two.
+	 */
+	private int[] tlbBuckets;
+
+	/** The next valid TLB entry in the same chain as each entry, or -1. */
+	private int[] tlbNext;
 
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
@@ -568,6 +916,39 @@ public final class Processor {
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
 
+	/**
+	 * Predecoded instructions, indexed by physical page number and then by word
+	 * within the page. A page's array is allocated the first time an
+	 * instruction is fetched from it. Each entry holds the raw instruction in
+	 * its low 32 bits and its index into <tt>Mips.decodeTable</tt>, plus one,
+	 * in its high 32 bits, so an entry of 0 means the word has not been
+	 * decoded.
+	 */
+	private long[][] decodeCache;
+
+	/** The exception raised by every faulting instruction. */
+	private MipsException exception = new MipsException();
+
+	/**
+	 * Translated basic blocks, indexed by the physical page number and word of
+	 * their first instruction. A page's blocks are all discarded whenever
+	 * anything in the page is written.
+	 */
+	private BoundInstruction[][][] blockCache;
+
+	/** <tt>true</tt> if executing basic blocks instead of interpreting. */
+	private boolean usingBlocks;
+
+	/**
+	 * The processor debugging flags, read once when the processor is created
+	 * so that the per-instruction checks are a single field test.
+	 */
+	private final boolean traceProcessor, traceDisassemble,
+			traceFullDisassemble;
+
+	/** <tt>true</tt> if any processor debugging output is enabled. */
+	private final boolean tracing;
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -583,27 +964,43 @@ public final class Processor {
 		}
 	}
 
+	/**
+	 * An exception raised by a user instruction. The processor has only one,
+	 * which is reused for every exception it raises, and it does not record a
+	 * stack trace; page faults and TLB misses can be frequent enough that
+	 * allocating a new exception for each one is a significant cost.
+	 */
 	private class MipsException extends Exception {
-		public MipsException(int cause) {
+		public MipsException() {
+			super(null, null, false, false);
+		}
+
+		public MipsException raise(int cause) {
 			Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
 			this.cause = cause;
+			hasBadVAddr = false;
+			return this;
 		}
 
-		public MipsException(int cause, int badVAddr) {
-			this(cause);
+		public MipsException raise(int cause, int badVAddr) {
+			raise(cause);
 
 			hasBadVAddr = true;
 			this.badVAddr = badVAddr;
+			return this;
 		}
 
 		public void handle() {
+			// the exception handler may raise this exception again
+			int cause = this.cause;
+
 			writeRegister(regCause, cause);
 
 			if (hasBadVAddr)
 				writeRegister(regBadVAddr, badVAddr);
 
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+			if (traceDisassemble || traceFullDisassemble)
 				System.out.println("exception: " + exceptionNames[cause]);
 
 			finishLoad();
@@ -631,41 +1028,54 @@ public final class Processor {
 			writeBack();
 		}
 
+		/**
+		 * Execute an instruction that has already been fetched.
+		 * 
+		 * @param predecoded the predecoded instruction.
+		 */
+		public void run(long predecoded) throws MipsException {
+			this.predecoded = predecoded;
+			value = (int) predecoded;
+
+			decode();
+			execute();
+			writeBack();
+		}
+
 		private boolean test(int flag) {
 			return Lib.test(flag, flags);
 		}
 
 		private void fetch() throws MipsException {
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
+			if ((traceDisassemble && !traceProcessor)
+					|| traceFullDisassemble)
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
+			if (traceProcessor)
+				System.out.println("\treadMem vaddr=0x"
+						+ Lib.toHexString(registers[regPC]) + ", size=4");
+
+			predecoded = predecode(translate(registers[regPC], 4, false));
+
+			value = (int) predecoded;
+
+			if (traceProcessor)
+				System.out.println("\t\tvalue read=0x"
+						+ Lib.toHexString(value, 8));
 		}
 
 		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
-
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
+			op = value >>> 26;
+			rs = (value >>> 21) & 0x1F;
+			rt = (value >>> 16) & 0x1F;
+			rd = (value >>> 11) & 0x1F;
+			sh = (value >>> 6) & 0x1F;
+			func = value & 0x3F;
+			target = value & 0x3FFFFFF;
+			imm = (value << 16) >> 16;
+
+			Mips info = Mips.decodeTable[(int) (predecoded >>> 32) - 1];
 
 			operation = info.operation;
 			name = info.name;
@@ -733,13 +1143,13 @@ public final class Processor {
 				src2 &= 0xFFFFFFFFL;
 			}
 
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+			if (traceDisassemble || traceFullDisassemble)
 				print();
 		}
 
 		private void print() {
-			if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor)
-					&& !Lib.test(dbgFullDisassemble))
+			if (traceDisassemble && traceProcessor
+					&& !traceFullDisassemble)
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
@@ -771,7 +1181,7 @@ public final class Processor {
 					minCharsPrinted += 2;
 					maxCharsPrinted += 3;
 
-					if (Lib.test(dbgFullDisassemble)) {
+					if (traceFullDisassemble) {
 						System.out
 								.print("#0x" + Lib.toHexString(registers[rs]));
 						minCharsPrinted += 11;
@@ -783,7 +1193,7 @@ public final class Processor {
 					minCharsPrinted += 2;
 					maxCharsPrinted += 3;
 
-					if (Lib.test(dbgFullDisassemble)
+					if (traceFullDisassemble
 							&& (i != 0 || !test(Mips.DST))
 							&& !test(Mips.DELAYEDLOAD)) {
 						System.out
@@ -815,7 +1225,7 @@ public final class Processor {
 					minCharsPrinted += 4;
 					maxCharsPrinted += 5;
 
-					if (Lib.test(dbgFullDisassemble)) {
+					if (traceFullDisassemble) {
 						System.out
 								.print("#0x" + Lib.toHexString(registers[rs]));
 						minCharsPrinted += 11;
@@ -855,8 +1265,8 @@ public final class Processor {
 				}
 			}
 
-			if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor)
-					&& !Lib.test(dbgFullDisassemble))
+			if (traceDisassemble && traceProcessor
+					&& !traceFullDisassemble)
 				System.out.print("\n");
 		}
 
@@ -884,7 +1294,7 @@ public final class Processor {
 						throw new ArithmeticException();
 				}
 				catch (ArithmeticException e) {
-					throw new MipsException(exceptionOverflow);
+					throw exception.raise(exceptionOverflow);
 				}
 				break;
 
@@ -954,7 +1364,7 @@ public final class Processor {
 				break;
 
 			case Mips.SYSCALL:
-				throw new MipsException(exceptionSyscall);
+				throw exception.raise(exceptionSyscall);
 
 			case Mips.LOAD:
 				value = readMem(addr, size);
@@ -1025,7 +1435,7 @@ public final class Processor {
 				System.err.println("Warning: encountered unimplemented inst");
 
 			case Mips.INVALID:
-				throw new MipsException(exceptionIllegalInstruction);
+				throw exception.raise(exceptionIllegalInstruction);
 
 			default:
 				Lib.assertNotReached();
@@ -1035,7 +1445,7 @@ public final class Processor {
 		private void writeBack() throws MipsException {
 			// if instruction is signed, but carry bit !+ sign bit, throw
 			if (test(Mips.OVERFLOW) && Lib.test(dst, 31) != Lib.test(dst, 32))
-				throw new MipsException(exceptionOverflow);
+				throw exception.raise(exceptionOverflow);
 
 			if (test(Mips.DELAYEDLOAD))
 				delayedLoad(dstReg, (int) dst, mask);
@@ -1049,7 +1459,7 @@ public final class Processor {
 				registers[dstReg] = (int) dst;
 
 			if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-				if (Lib.test(dbgFullDisassemble)) {
+				if (traceFullDisassemble) {
 					System.out.print("#0x" + Lib.toHexString((int) dst));
 					if (test(Mips.DELAYEDLOAD))
 						System.out.print(" (delayed load)");
@@ -1062,12 +1472,14 @@ public final class Processor {
 
 			advancePC(nextPC);
 
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
+			if ((traceDisassemble && !traceProcessor)
+					|| traceFullDisassemble)
 				System.out.print("\n");
 		}
 
 		// state used to execute a single instruction
+		long predecoded;
+
 		int value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
@@ -1085,6 +1497,264 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * An instruction in a translated basic block. The fields of the
+	 * instruction are decoded when the block is translated, so running it
+	 * only reads and writes registers and memory.
+	 */
+	private abstract class BoundInstruction {
+		/**
+		 * Execute this instruction, with the same effect as
+		 * <tt>Instruction.run()</tt>.
+		 */
+		abstract void run() throws MipsException;
+	}
+
+	/**
+	 * An arithmetic, logical or shift instruction, or a move from the hi or
+	 * lo register.
+	 */
+	private class BoundArithmetic extends BoundInstruction {
+		BoundArithmetic(Mips info, int value) {
+			Lib.assertTrue(Lib.test(Mips.DST, info.flags));
+
+			operation = info.operation;
+			rs = (value >>> 21) & 0x1F;
+			rt = (value >>> 16) & 0x1F;
+			dstReg = info.format == Mips.IFMT ? rt : (value >>> 11) & 0x1F;
+			shift = (value >>> 6) & 0x1F;
+
+			int imm = (value << 16) >> 16;
+			if (Lib.test(Mips.UNSIGNED, info.flags))
+				imm &= 0xFFFF;
+			this.imm = imm;
+
+			shiftSource = Lib.test(Mips.SRC1SH, info.flags);
+			immediateSource = Lib.test(Mips.SRC2IMM, info.flags);
+			unsigned = Lib.test(Mips.UNSIGNED, info.flags);
+			overflow = Lib.test(Mips.OVERFLOW, info.flags);
+		}
+
+		void run() throws MipsException {
+			long src1 = shiftSource ? shift : registers[rs];
+			long src2 = immediateSource ? imm : registers[rt];
+			if (unsigned) {
+				src1 &= 0xFFFFFFFFL;
+				src2 &= 0xFFFFFFFFL;
+			}
+
+			long dst;
+			switch (operation) {
+			case Mips.ADD:
+				dst = src1 + src2;
+				break;
+			case Mips.SUB:
+				dst = src1 - src2;
+				break;
+			case Mips.SLL:
+				dst = src2 << (src1 & 0x1F);
+				break;
+			case Mips.SRA:
+				dst = src2 >> (src1 & 0x1F);
+				break;
+			case Mips.SRL:
+				dst = src2 >>> (src1 & 0x1F);
+				break;
+			case Mips.SLT:
+				dst = (src1 < src2) ? 1 : 0;
+				break;
+			case Mips.AND:
+				dst = src1 & src2;
+				break;
+			case Mips.OR:
+				dst = src1 | src2;
+				break;
+			case Mips.NOR:
+				dst = ~(src1 | src2);
+				break;
+			case Mips.XOR:
+				dst = src1 ^ src2;
+				break;
+			case Mips.LUI:
+				dst = imm << 16;
+				break;
+			case Mips.MFLO:
+				dst = registers[regLo];
+				break;
+			case Mips.MFHI:
+				dst = registers[regHi];
+				break;
+			default:
+				Lib.assertNotReached();
+				return;
+			}
+
+			if (overflow && Lib.test(dst, 31) != Lib.test(dst, 32))
+				throw exception.raise(exceptionOverflow);
+
+			finishLoad();
+
+			if (dstReg != 0)
+				registers[dstReg] = (int) dst;
+
+			advancePC(registers[regNextPC] + 4);
+		}
+
+		private final int operation, rs, rt, dstReg, shift, imm;
+
+		private final boolean shiftSource, immediateSource, unsigned,
+				overflow;
+	}
+
+	/** A load of a byte, halfword or word. */
+	private class BoundLoad extends BoundInstruction {
+		BoundLoad(Mips info, int value) {
+			rs = (value >>> 21) & 0x1F;
+			dstReg = (value >>> 16) & 0x1F;
+			unsigned = Lib.test(Mips.UNSIGNED, info.flags);
+
+			int imm = (value << 16) >> 16;
+			if (unsigned)
+				imm &= 0xFFFF;
+			this.imm = imm;
+
+			if (Lib.test(Mips.SIZEB, info.flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, info.flags))
+				size = 2;
+			else
+				size = 4;
+		}
+
+		void run() throws MipsException {
+			int value = readMem(registers[rs] + imm, size);
+
+			if (!unsigned)
+				value = Lib.extend(value, 0, size * 8);
+
+			delayedLoad(dstReg, value, 0xFFFFFFFF);
+
+			advancePC(registers[regNextPC] + 4);
+		}
+
+		private final int rs, dstReg, imm, size;
+
+		private final boolean unsigned;
+	}
+
+	/** A store of a byte, halfword or word. */
+	private class BoundStore extends BoundInstruction {
+		BoundStore(Mips info, int value) {
+			rs = (value >>> 21) & 0x1F;
+			rt = (value >>> 16) & 0x1F;
+			imm = (value << 16) >> 16;
+
+			if (Lib.test(Mips.SIZEB, info.flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, info.flags))
+				size = 2;
+			else
+				size = 4;
+		}
+
+		void run() throws MipsException {
+			writeMem(registers[rs] + imm, size, registers[rt]);
+
+			finishLoad();
+
+			advancePC(registers[regNextPC] + 4);
+		}
+
+		private final int rs, rt, imm, size;
+	}
+
+	/** A branch or jump, possibly saving the return address. */
+	private class BoundBranch extends BoundInstruction {
+		BoundBranch(Mips info, int value) {
+			operation = info.operation;
+			format = info.format;
+			rs = (value >>> 21) & 0x1F;
+			rt = (value >>> 16) & 0x1F;
+			imm = (value << 16) >> 16;
+			target = value & 0x3FFFFFF;
+			link = Lib.test(Mips.LINK, info.flags);
+
+			if (Lib.test(Mips.DSTRA, info.flags))
+				dstReg = regRA;
+			else
+				dstReg = (value >>> 11) & 0x1F;
+		}
+
+		void run() throws MipsException {
+			int nextPC = registers[regNextPC] + 4;
+
+			int jtarget;
+			if (format == Mips.RFMT)
+				jtarget = registers[rs];
+			else if (format == Mips.IFMT)
+				jtarget = registers[regNextPC] + (imm << 2);
+			else
+				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
+
+			int src1 = registers[rs], src2 = registers[rt];
+
+			boolean branch;
+			switch (operation) {
+			case Mips.JUMP:
+				branch = true;
+				break;
+			case Mips.BEQ:
+				branch = (src1 == src2);
+				break;
+			case Mips.BNE:
+				branch = (src1 != src2);
+				break;
+			case Mips.BGEZ:
+				branch = (src1 >= 0);
+				break;
+			case Mips.BGTZ:
+				branch = (src1 > 0);
+				break;
+			case Mips.BLEZ:
+				branch = (src1 <= 0);
+				break;
+			case Mips.BLTZ:
+				branch = (src1 < 0);
+				break;
+			default:
+				Lib.assertNotReached();
+				return;
+			}
+
+			finishLoad();
+
+			if (link && dstReg != 0)
+				registers[dstReg] = nextPC;
+
+			advancePC(branch ? jtarget : nextPC);
+		}
+
+		private final int operation, format, rs, rt, dstReg, imm, target;
+
+		private final boolean link;
+	}
+
+	/** An instruction that is not translated, and is interpreted instead. */
+	private class BoundInterpreted extends BoundInstruction {
+		BoundInterpreted(long predecoded, Instruction inst) {
+			this.predecoded = predecoded;
+			this.inst = inst;
+		}
+
+		void run() throws MipsException {
+			inst.run(predecoded);
+		}
+
+		private final long predecoded;
+
+		private final Instruction inst;
+	}
+
 	private static class Mips {
 		Mips() {
 		}
@@ -1229,5 +1899,51 @@ public final class Processor {
 				new Mips(), new Mips(), new Mips(), new Mips(), new Mips(),
 				new Mips(), new Mips(), new Mips(), new Mips(), new Mips(),
 				new Mips(), new Mips() };
+
+		/**
+		 * All three decoding tables, concatenated: 64 entries indexed by
+		 * opcode, then 64 indexed by function field, then 32 indexed by the rt
+		 * field of a reg-imm instruction. Slots past the end of a shorter table
+		 * decode as invalid instructions.
+		 */
+		static final Mips[] decodeTable = new Mips[64 + 64 + 32];
+
+		static {
+			for (int i = 0; i < decodeTable.length; i++)
+				decodeTable[i] = new Mips();
+
+			System.arraycopy(optable, 0, decodeTable, 0, optable.length);
+			System.arraycopy(specialtable, 0, decodeTable, 64,
+					specialtable.length);
+			System.arraycopy(regimmtable, 0, decodeTable, 128,
+					regimmtable.length);
+		}
+
+		/**
+		 * Decode an instruction into the compact form kept in the processor's
+		 * decode cache.
+		 * 
+		 * @param value the raw instruction.
+		 * @return the raw instruction in the low 32 bits, and one plus its
+		 * index in <tt>decodeTable</tt> in the high 32 bits.
+		 */
+		static long predecode(int value) {
+			int op = value >>> 26;
+			int index;
+
+			switch (op) {
+			case 0:
+				index = 64 + (value & 0x3F);
+				break;
+			case 1:
+				index = 128 + ((value >>> 16) & 0x1F);
+				break;
+			default:
+				index = op;
+				break;
+			}
+
+			return ((long) (index + 1) << 32) | (value & 0xFFFFFFFFL);
+		}
 	}
 }
@@ -26,6 +26,8 @@ public final class Stats {
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
 				+ ", TLB misses " + numTLBMisses);
+		System.out.println("Decode cache: hits " + numDecodeHits
+				+ ", misses " + numDecodeMisses);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
 	}
@@ -63,6 +65,18 @@ public final class Stats {
 	/** The total number of TLB misses that have occurred. */
 	public int numTLBMisses = 0;
 
+	/**
+	 * The total number of instruction fetches satisfied by the processor's
+	 * decode cache.
+	 */
+	public long numDecodeHits = 0;
+
+	/**
+	 * The total number of instruction fetches that had to decode the
+	 * instruction from memory.
+	 */
+	public long numDecodeMisses = 0;
+
 	/** The total number of packets Nachos has sent to the network. */
 	public int numPacketsSent = 0;
 
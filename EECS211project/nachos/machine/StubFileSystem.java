@@ -67,6 +67,11 @@ public class StubFileSystem implements FileSystem {
 	private void delay() {
 		long time = Machine.timer().getTime();
 		int amount = 1000;
+
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.blockingOnIO(KThread.currentThread());
+		Machine.interrupt().restore(intStatus);
+
 		ThreadedKernel.alarm.waitUntil(amount);
 		Lib.assertTrue(Machine.timer().getTime() >= time + amount);
 	}
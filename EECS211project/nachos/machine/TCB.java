@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -21,6 +22,15 @@ import java.security.PrivilegedAction;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code. It's
  * against the rules, <i>and</i> it can easily deadlock nachos.
+ * 
+ * <p>
+ * The way TCBs hand the CPU to each other is chosen by <tt>TCB.backend</tt> in
+ * <tt>nachos.conf</tt>. The default, <tt>monitor</tt>, has each Java thread
+ * wait on its TCB's monitor. <tt>park</tt> uses
+ * <tt>LockSupport.park()</tt>/<tt>unpark()</tt> instead, which switches
+ * faster, and by default allows far more threads with smaller stacks. The
+ * limits can be set with <tt>TCB.maxThreads</tt> and <tt>TCB.stackSize</tt>
+ * (in bytes, 0 for the JVM default).
  */
 public final class TCB {
 	/**
@@ -39,6 +49,17 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		String backend = Config.getString("TCB.backend", "monitor");
+		Lib.assertTrue(backend.equals("monitor") || backend.equals("park"),
+				"unknown TCB.backend: " + backend);
+		usingPark = backend.equals("park");
+
+		threadLimit = Config.getInteger("TCB.maxThreads",
+				usingPark ? maxParkedThreads : maxThreads);
+		stackSize = Config.getInteger("TCB.stackSize",
+				usingPark ? parkedStackSize : 0);
+		Lib.assertTrue(threadLimit > 0 && stackSize >= 0);
 	}
 
 	/**
@@ -68,7 +89,8 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(runningThreads.size() < threadLimit,
+				"too many threads (TCB.maxThreads is " + threadLimit + ")");
 
 		isFirstTCB = (currentTCB == null);
 
@@ -102,7 +124,7 @@ public final class TCB {
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					javaThread = new Thread(null, tcbTarget, "TCB", stackSize);
 				}
 			});
 
@@ -298,7 +320,17 @@ public final class TCB {
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
 	 */
-	private synchronized void waitForInterrupt() {
+	private void waitForInterrupt() {
+		if (usingPark) {
+			while (!running)
+				LockSupport.park(this);
+		}
+		else {
+			waitOnMonitor();
+		}
+	}
+
+	private synchronized void waitOnMonitor() {
 		while (!running) {
 			try {
 				wait();
@@ -314,7 +346,17 @@ public final class TCB {
 	 * starting and destroying TCBs, as well as in context switching to this
 	 * TCB.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
+		if (usingPark) {
+			running = true;
+			LockSupport.unpark(javaThread);
+		}
+		else {
+			notifyMonitor();
+		}
+	}
+
+	private synchronized void notifyMonitor() {
 		running = true;
 		notify();
 	}
@@ -342,10 +384,25 @@ public final class TCB {
 
 	/**
 	 * The maximum number of started, non-destroyed TCB's that can be in
-	 * existence.
+	 * existence, unless <tt>TCB.maxThreads</tt> says otherwise.
 	 */
 	public static final int maxThreads = 250;
 
+	/** The default thread limit when using the <tt>park</tt> backend. */
+	private static final int maxParkedThreads = 50000;
+
+	/** The default stack size when using the <tt>park</tt> backend. */
+	private static final int parkedStackSize = 256 * 1024;
+
+	/** <tt>true</tt> if TCBs hand off using <tt>park()</tt>/<tt>unpark()</tt>. */
+	private static boolean usingPark;
+
+	/** The maximum number of TCBs, from <tt>TCB.maxThreads</tt>. */
+	private static int threadLimit;
+
+	/** The stack size of new Java threads, or 0 for the JVM default. */
+	private static int stackSize;
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -401,9 +458,10 @@ public final class TCB {
 	 * and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
 	 * associated Java thread ought to run ASAP. When starting or destroying a
 	 * TCB, this is temporarily true for a thread other than that of the current
-	 * TCB.
+	 * TCB. It is volatile because the <tt>park</tt> backend reads it without
+	 * holding the monitor.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -157,6 +157,29 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Advance the simulated time by several ticks at once. This has the
+		 * same effect as calling <tt>tick(inKernelMode)</tt> <i>count</i>
+		 * times, but only checks for due interrupts after the last tick, so
+		 * the caller must make sure no interrupt becomes due any earlier (see
+		 * <tt>ticksUntilDue()</tt>).
+		 * 
+		 * @param inKernelMode <tt>true</tt> if the current thread is running
+		 * kernel code, <tt>false</tt> if the current thread is running MIPS
+		 * user code.
+		 * @param count the number of ticks to advance.
+		 */
+		public void tick(boolean inKernelMode, int count);
+
+		/**
+		 * Return the number of ticks of simulated time until the next pending
+		 * interrupt becomes due, or <tt>Long.MAX_VALUE</tt> if no interrupts
+		 * are pending.
+		 * 
+		 * @return the amount of time until the next interrupt is due.
+		 */
+		public long ticksUntilDue();
 	}
 
 	/**
@@ -25,6 +25,7 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFork		13
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -53,7 +54,7 @@
  */
 void halt();
 
-/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join() */
+/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join(), fork() */
 
 /**
  * Terminate the current process immediately. Any open file descriptors
@@ -109,6 +110,19 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Create a child process that is a copy of the current process. The child
+ * runs the same program, with the same memory contents and open files, and
+ * both processes continue from the return of fork(). Memory is shared
+ * copy-on-write, so each page is only copied when one of the processes first
+ * writes to it.
+ *
+ * fork() returns the child process's process ID to the parent, which can be
+ * passed to join(), and returns 0 to the child. On error, returns -1 and no
+ * child is created.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
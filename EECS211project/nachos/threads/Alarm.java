@@ -1,8 +1,6 @@
 package nachos.threads;
 
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.PriorityQueue;
 
 import nachos.machine.*;
 import nachos.threads.KThread.PingTest;
@@ -13,17 +11,6 @@ import nachos.threads.KThread.PingTest;
  * until a certain time.
  */
 public class Alarm {
-	
-	
-    private static final char debugAlarm = 'a';
-    
-    private List<KThread> waitQueue;
-    private List<Long> timeQueue;
-    private Lock queueLock;
-    private long time_Created;
-	
-
-	
 	/**
 	 * Allocate a new Alarm. Set the machine's timer interrupt handler to this
 	 * alarm's callback.
@@ -32,13 +19,8 @@ public class Alarm {
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
 	 */
 	public Alarm() {
-		
-		Lib.debug(debugAlarm, "Creating Alarm" + Machine.timer().getTime());
-        time_Created = Machine.timer().getTime();
-        waitQueue = new ArrayList<KThread>();
-        timeQueue = new ArrayList<Long>();
-        queueLock = new Lock();
-		
+		Lib.debug(debugAlarm, "Creating Alarm " + Machine.timer().getTime());
+
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
 				timerInterrupt();
@@ -48,29 +30,31 @@ public class Alarm {
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * periodically (approximately every 500 clock ticks). Wakes every sleeping
+	 * thread whose wake time has arrived, in order of wake time. Then, if the
+	 * current thread has used up its time slice, tells the scheduler and
+	 * causes the thread to yield, forcing a context switch if there is
+	 * another thread that should be run.
 	 */
 	public void timerInterrupt() {
-//		KThread.currentThread().yield();
-		
-	    boolean preState = Machine.interrupt().disable();
-
-	    
-	    KThread thread;
-        //If there is a task that is waiting, restore it to ready status
-        for (int i = 0; i < waitQueue.size(); i++) {
-            if (Machine.timer().getTime() > timeQueue.get(i)) {
-                waitQueue.get(i).ready();
-                waitQueue.remove(i);
-                timeQueue.remove(i);
-            }
-        }
-	    
-	    Machine.interrupt().restore(preState);
-	    
-	    KThread.yield();
+		boolean intStatus = Machine.interrupt().disable();
+
+		long time = Machine.timer().getTime();
+		while (!sleepers.isEmpty() && sleepers.peek().wakeTime <= time)
+			sleepers.poll().thread.ready();
+
+		// preempt at the interrupt closest to the end of the time slice
+		KThread thread = KThread.currentThread();
+		boolean expired = thread.getSliceTime() >= ThreadedKernel.scheduler
+				.getQuantum(thread) - Stats.TimerTicks / 2;
+
+		if (expired)
+			ThreadedKernel.scheduler.quantumExpired(thread);
+
+		Machine.interrupt().restore(intStatus);
+
+		if (expired)
+			KThread.yield();
 	}
 
 	/**
@@ -86,32 +70,54 @@ public class Alarm {
 	 * @see nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
-		// for now, cheat just to get something working (busy waiting is bad)
-//		long wakeTime = Machine.timer().getTime() + x;
-//		while (wakeTime > Machine.timer().getTime())
-//			KThread.yield();
-		
-		//Sets current thread as waitThread
+		if (x <= 0)
+			return;
+
+		long wakeTime = Machine.timer().getTime() + x;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		sleepers.add(new Sleeper(KThread.currentThread(), wakeTime));
+		Lib.debug(debugAlarm, "Sleeping until " + wakeTime + ", "
+				+ sleepers.size() + " sleepers");
+
+		KThread.sleep();
 
-        //Initializes wakeTime with x ticks
-        long wakeTime = Machine.timer().getTime() + x;
+		Machine.interrupt().restore(intStatus);
+	}
 
-        //Disable interrupts
-        boolean intStatus = Machine.interrupt().disable();
-        queueLock.acquire();
+	/**
+	 * A sleeping thread and the time it should be woken. Sleepers with the
+	 * same wake time are woken in the order they went to sleep.
+	 */
+	private static class Sleeper implements Comparable<Sleeper> {
+		Sleeper(KThread thread, long wakeTime) {
+			this.thread = thread;
+			this.wakeTime = wakeTime;
+			this.id = numSleepersCreated++;
+		}
 
-        //Puts task to sleep for x ticks
-        waitQueue.add(KThread.currentThread());
-        Lib.debug(debugAlarm, "Added new task size="+ waitQueue.size() + " timeCreated="+this.time_Created);
-        timeQueue.add(wakeTime);
+		public int compareTo(Sleeper sleeper) {
+			if (wakeTime != sleeper.wakeTime)
+				return wakeTime < sleeper.wakeTime ? -1 : 1;
+			else
+				return id < sleeper.id ? -1 : (id > sleeper.id ? 1 : 0);
+		}
 
-        queueLock.release();
+		KThread thread;
 
-        KThread.sleep();
+		long wakeTime;
 
-        //Restores interrupts
-        Machine.interrupt().restore(intStatus);
+		private long id;
 	}
+
+	private static long numSleepersCreated = 0;
+
+	/** Sleeping threads, earliest wake time first. */
+	private PriorityQueue<Sleeper> sleepers = new PriorityQueue<Sleeper>();
+
+	private static final char debugAlarm = 'a';
+
 	public static void alarmTest() {
 		KThread t1=new KThread(new PingTest(1)).setName("forked thread");
 		t1.fork();
@@ -126,6 +126,39 @@ public class KThread {
 		return (name + " (#" + id + ")");
 	}
 
+	/**
+	 * Get the number of ticks this thread has run for, including its current
+	 * time slice if it is running.
+	 * 
+	 * @return the number of ticks this thread has run for.
+	 */
+	public long getRunTime() {
+		if (this == currentThread)
+			return runTime + getSliceTime();
+		else
+			return runTime;
+	}
+
+	/**
+	 * Get the number of ticks since the CPU was last switched to this thread.
+	 * If this thread is running, this is how much of its time slice it has
+	 * used.
+	 * 
+	 * @return the number of ticks since this thread was last dispatched.
+	 */
+	public long getSliceTime() {
+		return Machine.timer().getTime() - dispatchTime;
+	}
+
+	/**
+	 * Get the number of times the CPU has been switched to this thread.
+	 * 
+	 * @return the number of times this thread has been dispatched.
+	 */
+	public int getNumSwitches() {
+		return numSwitches;
+	}
+
 	/**
 	 * Deterministically and consistently compare this thread to another thread.
 	 */
@@ -193,12 +226,20 @@ public class KThread {
 	 * delete this thread.
 	 */
 	public static void finish() {
-		Lib.debug(dbgThread, "Finishing thread: " + currentThread.toString());
+		Lib.debug(dbgThread, "Finishing thread: " + currentThread.toString()
+				+ ", ran " + currentThread.getRunTime() + " ticks over "
+				+ currentThread.numSwitches + " switches");
 
 		Machine.interrupt().disable();
 
 		Machine.autoGrader().finishingCurrentThread();
 
+		if (currentThread.joinQueue != null) {
+			KThread joiner;
+			while ((joiner = currentThread.joinQueue.nextThread()) != null)
+				joiner.ready();
+		}
+
 		Lib.assertTrue(toBeDestroyed == null);
 		toBeDestroyed = currentThread;
 
@@ -270,26 +311,40 @@ public class KThread {
 		Lib.assertTrue(status != statusReady);
 
 		status = statusReady;
-		if (this != idleThread)
+		if (this != idleThread) {
 			readyQueue.waitForAccess(this);
+			numReadyThreads++;
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
 
 	/**
 	 * Waits for this thread to finish. If this thread is already finished,
-	 * return immediately. This method must only be called once; the second call
-	 * is not guaranteed to return. This thread must not be the current thread.
+	 * return immediately. This thread must not be the current thread.
+	 * 
+	 * <p>
+	 * The current thread sleeps on this thread's join queue, donating its
+	 * priority to this thread if the scheduler supports it, until
+	 * <tt>finish()</tt> wakes it.
 	 */
 	public void join() {
 		Lib.debug(dbgThread, "Joining to thread: " + toString());
 		Lib.assertTrue(this != currentThread);
-		while(this.status!=statusFinished) {
-			currentThread.yield();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (status != statusFinished) {
+			if (joinQueue == null) {
+				joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+				joinQueue.acquire(this);
+			}
+
+			joinQueue.waitForAccess(currentThread);
+			sleep();
 		}
-		
-		
 
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -300,14 +355,23 @@ public class KThread {
 	 * 
 	 * <p>
 	 * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+	 * 
+	 * <p>
+	 * While no other thread is ready, nothing can happen until the next
+	 * interrupt, so the idle thread lets <tt>Interrupt.idle()</tt> advance the
+	 * simulated time straight to it instead of yielding once per tick.
 	 */
 	private static void createIdleThread() {
 		Lib.assertTrue(idleThread == null);
 
 		idleThread = new KThread(new Runnable() {
 			public void run() {
-				while (true)
-					yield();
+				while (true) {
+					if (numReadyThreads == 0)
+						Machine.interrupt().idle();
+
+					KThread.yield();
+				}
 			}
 		});
 		idleThread.setName("idle");
@@ -325,6 +389,8 @@ public class KThread {
 		KThread nextThread = readyQueue.nextThread();
 		if (nextThread == null)
 			nextThread = idleThread;
+		else
+			numReadyThreads--;
 
 		nextThread.run();
 	}
@@ -358,6 +424,11 @@ public class KThread {
 		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 				+ " to: " + toString());
 
+		long time = Machine.timer().getTime();
+		currentThread.runTime += time - currentThread.dispatchTime;
+		dispatchTime = time;
+		numSwitches++;
+
 		currentThread = this;
 
 		tcb.contextSwitch();
@@ -532,6 +603,21 @@ public class KThread {
 
 	private TCB tcb;
 
+	/**
+	 * The threads waiting in <tt>join()</tt> for this thread to finish, or
+	 * <tt>null</tt> if none have joined yet.
+	 */
+	private ThreadQueue joinQueue = null;
+
+	/** The ticks this thread has run for, up to its last time slice. */
+	private long runTime = 0;
+
+	/** When the CPU was last switched to this thread. */
+	private long dispatchTime = 0;
+
+	/** The number of times the CPU has been switched to this thread. */
+	private int numSwitches = 0;
+
 	/**
 	 * Unique identifer for this thread. Used to deterministically compare
 	 * threads.
@@ -543,11 +629,12 @@ public class KThread {
 
 	static ThreadQueue readyQueue = null;
 
+	/** The number of threads in <tt>readyQueue</tt>. */
+	private static int numReadyThreads = 0;
+
 	private static KThread currentThread = null;
 
 	private static KThread toBeDestroyed = null;
 
 	private static KThread idleThread = null;
-	
-	private static Lock joinLock = new Lock();
 }
\ No newline at end of file
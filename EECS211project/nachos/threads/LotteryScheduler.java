@@ -41,7 +41,269 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getThreadState(thread).setPriority(priority);
+		Machine.interrupt().restore(intStatus);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The default number of tickets for a new thread. Do not change this
+	 * value.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have. Do not change this
+	 * value.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have. Do not change this
+	 * value.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 * 
+	 * <p>
+	 * Each waiting thread has a slot in a Fenwick tree (binary indexed tree)
+	 * of ticket counts, so adding or removing a thread, and finding the
+	 * holder of the winning ticket, take time logarithmic in the number of
+	 * slots, rather than a walk over every waiting thread.
+	 */
+	protected class LotteryQueue extends PriorityQueue {
+		LotteryQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		/**
+		 * Hold a lottery among the waiting threads. Unlike with a priority
+		 * queue, <tt>nextThread()</tt> may not return the thread returned by
+		 * an earlier call to this method.
+		 * 
+		 * @return the winner of the lottery, or <tt>null</tt> if no threads
+		 * are waiting.
+		 */
+		protected ThreadState pickNextThread() {
+			if (totalTickets == 0)
+				return null;
+
+			long ticket;
+			if (totalTickets <= Integer.MAX_VALUE)
+				ticket = Lib.random((int) totalTickets);
+			else
+				ticket = (long) (Lib.random() * totalTickets);
+
+			// find the first slot whose prefix sum is greater than ticket
+			int slot = 0;
+			for (int step = Integer.highestOneBit(waiters.length); step > 0; step >>= 1) {
+				if (slot + step <= waiters.length && tree[slot + step] <= ticket) {
+					slot += step;
+					ticket -= tree[slot];
+				}
+			}
+
+			return waiters[slot];
+		}
+
+		/**
+		 * Give a waiting thread a slot holding its tickets.
+		 * 
+		 * @param threadState the waiting thread.
+		 */
+		void add(ThreadState threadState) {
+			LotteryThreadState lotteryState = (LotteryThreadState) threadState;
+
+			if (numFreeSlots == 0)
+				grow();
+
+			int slot = freeSlots[--numFreeSlots];
+			waiters[slot] = lotteryState;
+			lotteryState.slot = slot;
+			lotteryState.queuedTickets = lotteryState.effectivePriority;
+
+			addTickets(slot, lotteryState.queuedTickets);
+		}
+
+		/**
+		 * Free a waiting thread's slot.
+		 * 
+		 * @param threadState the waiting thread.
+		 */
+		void remove(ThreadState threadState) {
+			LotteryThreadState lotteryState = (LotteryThreadState) threadState;
+			int slot = lotteryState.slot;
+
+			addTickets(slot, -lotteryState.queuedTickets);
+
+			waiters[slot] = null;
+			freeSlots[numFreeSlots++] = slot;
+		}
+
+		/**
+		 * Add to the tickets in a slot.
+		 * 
+		 * @param slot the slot.
+		 * @param tickets the number of tickets to add (negative to remove).
+		 */
+		private void addTickets(int slot, long tickets) {
+			totalTickets += tickets;
+
+			for (int i = slot + 1; i <= waiters.length; i += i & -i)
+				tree[i] += tickets;
+		}
+
+		/**
+		 * Double the number of slots, and rebuild the tree.
+		 */
+		private void grow() {
+			int oldSize = waiters.length;
+			int newSize = Math.max(4, 2 * oldSize);
+
+			LotteryThreadState[] oldWaiters = waiters;
+			waiters = new LotteryThreadState[newSize];
+			tree = new long[newSize + 1];
+			totalTickets = 0;
+
+			for (int slot = 0; slot < oldSize; slot++) {
+				waiters[slot] = oldWaiters[slot];
+				if (waiters[slot] != null)
+					addTickets(slot, waiters[slot].queuedTickets);
+			}
+
+			freeSlots = new int[newSize];
+			numFreeSlots = 0;
+			for (int slot = newSize - 1; slot >= oldSize; slot--)
+				freeSlots[numFreeSlots++] = slot;
+		}
+
+		/**
+		 * Return the total tickets held by the waiting threads.
+		 * 
+		 * @return the total tickets held by the waiting threads.
+		 */
+		long getTotalTickets() {
+			return totalTickets;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (LotteryThreadState waiter : waiters) {
+				if (waiter != null)
+					System.out.print(waiter.thread + " ");
+			}
+		}
+
+		/** The waiting thread in each slot, or <tt>null</tt> if it is free. */
+		private LotteryThreadState[] waiters = new LotteryThreadState[0];
+
+		/** The Fenwick tree of tickets per slot, indexed from 1. */
+		private long[] tree = new long[1];
+
+		/** The free slots, as a stack. */
+		private int[] freeSlots = new int[0];
+
+		private int numFreeSlots = 0;
+
+		private long totalTickets = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread under the lottery scheduler. A
+	 * thread's effective priority is the number of tickets it holds,
+	 * including the tickets of every thread waiting on a queue it holds that
+	 * transfers tickets.
+	 */
+	protected class LotteryThreadState extends ThreadState {
+		/**
+		 * Allocate a new <tt>LotteryThreadState</tt> object and associate it
+		 * with the specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryThreadState(KThread thread) {
+			super(thread);
+		}
+
+		/**
+		 * Compute the tickets held by the associated thread: its own, plus
+		 * the total held by the threads waiting on each queue it holds that
+		 * transfers tickets. Assumes, as the lottery scheduler may, that the
+		 * total does not exceed <tt>priorityMaximum</tt>; larger totals are
+		 * capped.
+		 * 
+		 * @return the tickets held by the associated thread.
+		 */
+		protected int computeEffectivePriority() {
+			long tickets = priority;
+
+			for (PriorityQueue queue : donationQueue)
+				if (queue.transferPriority)
+					tickets += ((LotteryQueue) queue).getTotalTickets();
+
+			return (int) Math.min(tickets, priorityMaximum);
+		}
+
+		/** The slot of <tt>waitingOn</tt> the thread is in. */
+		int slot;
+
+		/** The tickets counted for the thread in <tt>waitingOn</tt>. */
+		int queuedTickets;
 	}
 }
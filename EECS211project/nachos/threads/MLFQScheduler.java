@@ -0,0 +1,251 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A multilevel feedback queue scheduler. Threads are kept in one FIFO list
+ * per level, and the next thread to receive access is always the first thread
+ * of the highest non-empty level (level 0 is the highest).
+ *
+ * <p>
+ * A thread starts at the highest level. Each level down doubles the length of
+ * a thread's time slice, starting from the default time slice at the highest
+ * level. A thread that uses up its whole time slice is moved down a level, so
+ * CPU-bound threads sink and run for longer at a time once they are
+ * dispatched. A thread is also preempted at the next timer interrupt if a
+ * thread at a higher level is ready to run. A thread that blocks waiting for
+ * the console or the file system is moved back to the highest level, so
+ * I/O-bound threads stay near the top. Every
+ * <tt>MLFQScheduler.boostInterval</tt> ticks, every thread is moved back to
+ * the highest level, so threads at the lower levels cannot starve.
+ *
+ * <p>
+ * The number of levels is set by <tt>MLFQScheduler.levels</tt>. This
+ * scheduler does not transfer priority.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new multilevel feedback queue scheduler.
+	 */
+	public MLFQScheduler() {
+		numLevels = Config.getInteger("MLFQScheduler.levels", 3);
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+				20 * Stats.TimerTicks);
+
+		Lib.assertTrue(numLevels > 0 && boostInterval > 0);
+
+		nextBoostTime = boostInterval;
+	}
+
+	/**
+	 * Allocate a new multilevel feedback queue.
+	 *
+	 * @param transferPriority ignored. This scheduler does not transfer
+	 * priority.
+	 * @return a new multilevel feedback queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new MLFQueue();
+	}
+
+	/**
+	 * Return the priority of the specified thread, which is higher the higher
+	 * its level is: <tt>numLevels - 1</tt> at the highest level, and 0 at the
+	 * lowest.
+	 *
+	 * @param thread the thread to get the priority of.
+	 * @return the thread's priority.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return numLevels - 1 - getThreadState(thread).getLevel();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	/**
+	 * Return the time slice of the specified thread, which doubles with each
+	 * level down, or 0 if a thread at a higher level is ready to run.
+	 *
+	 * @param thread the thread to get the time slice of.
+	 * @return the thread's time slice.
+	 */
+	public int getQuantum(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		int level = getThreadState(thread).getLevel();
+
+		ThreadQueue readyQueue = KThread.readyQueue;
+		if (readyQueue instanceof MLFQueue
+				&& ((MLFQueue) readyQueue).getTopLevel() < level)
+			return 0;
+
+		return defaultQuantum << level;
+	}
+
+	/**
+	 * Move the current thread down a level if it has used up its time slice
+	 * (rather than being preempted by a thread at a higher level), and move
+	 * every thread back to the highest level if it is time for a boost.
+	 */
+	public void quantumExpired(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState threadState = getThreadState(thread);
+		int level = threadState.getLevel();
+		if (thread.getSliceTime() >= (defaultQuantum << level)
+				- Stats.TimerTicks / 2 && level < numLevels - 1)
+			threadState.level = level + 1;
+
+		long time = Machine.timer().getTime();
+		if (time >= nextBoostTime) {
+			numBoosts++;
+			nextBoostTime = time + boostInterval;
+		}
+	}
+
+	/**
+	 * Move the current thread back to the highest level, since it is about to
+	 * block waiting for a device.
+	 */
+	public void blockingOnIO(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		getThreadState(thread).level = 0;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState();
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> with one FIFO list per level.
+	 */
+	protected class MLFQueue extends ThreadQueue {
+		MLFQueue() {
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			LinkedList<KThread>[] levels = new LinkedList[numLevels];
+			this.levels = levels;
+
+			for (int i = 0; i < numLevels; i++)
+				levels[i] = new LinkedList<KThread>();
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			checkBoost();
+			levels[getThreadState(thread).getLevel()].add(thread);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			checkBoost();
+			for (int i = 0; i < numLevels; i++) {
+				if (!levels[i].isEmpty())
+					return levels[i].removeFirst();
+			}
+
+			return null;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		/**
+		 * Return the highest level with a thread waiting.
+		 *
+		 * @return the highest level with a thread waiting, or
+		 * <tt>numLevels</tt> if no threads are waiting.
+		 */
+		int getTopLevel() {
+			checkBoost();
+			for (int i = 0; i < numLevels; i++) {
+				if (!levels[i].isEmpty())
+					return i;
+			}
+
+			return numLevels;
+		}
+
+		/**
+		 * If every thread has been moved back to the highest level since this
+		 * queue was last used, move the threads waiting here to the highest
+		 * level, keeping them in order.
+		 */
+		private void checkBoost() {
+			if (boost == numBoosts)
+				return;
+
+			boost = numBoosts;
+			for (int i = 1; i < numLevels; i++) {
+				levels[0].addAll(levels[i]);
+				levels[i].clear();
+			}
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < numLevels; i++)
+				for (KThread thread : levels[i])
+					System.out.print(thread + " ");
+		}
+
+		private LinkedList<KThread>[] levels;
+
+		/** The last boost this queue has applied. */
+		private long boost = numBoosts;
+	}
+
+	/**
+	 * The scheduling state of a thread.
+	 */
+	protected class ThreadState {
+		/**
+		 * Return the level of the associated thread, which is the highest
+		 * level if there has been a boost since the level was last set.
+		 *
+		 * @return the level of the associated thread.
+		 */
+		int getLevel() {
+			if (boost != numBoosts) {
+				boost = numBoosts;
+				level = 0;
+			}
+
+			return level;
+		}
+
+		/** The level of the associated thread, 0 being the highest. */
+		int level = 0;
+
+		/** The last boost applied to <tt>level</tt>. */
+		long boost = numBoosts;
+	}
+
+	private int numLevels;
+
+	private int boostInterval;
+
+	private long nextBoostTime;
+
+	/** The number of times every thread has been moved to the highest level. */
+	private long numBoosts = 0;
+}
@@ -1,10 +1,8 @@
 package nachos.threads;
-import java.util.HashSet;
-import java.util.LinkedList;
+
 import nachos.machine.*;
 
 import java.util.TreeSet;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -132,6 +130,14 @@ public class PriorityScheduler extends Scheduler {
 
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * 
+	 * <p>
+	 * Waiting threads are kept in one FIFO bucket per effective priority,
+	 * along with a bitmap of the non-empty buckets. Each bucket is a
+	 * doubly-linked list threaded through the waiting threads' states, so
+	 * adding, removing and finding the next thread take constant time. When a
+	 * waiting thread's effective priority changes, it is moved to the back of
+	 * its new bucket.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -141,11 +147,6 @@ public class PriorityScheduler extends Scheduler {
 		public void waitForAccess(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
 			getThreadState(thread).waitForAccess(this);
-			
-			/*waitQueue.add(thread);
-			if(KThread.currentThread()!=thread) {
-				KThread.currentThread().yield();
-			}*/
 		}
 
 		public void acquire(KThread thread) {
@@ -155,7 +156,6 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			ThreadState threadinfo=pickNextThread();
 			if (lockHolder != null) {
 				lockHolder.donationQueue.remove(this);
 				lockHolder.update();
@@ -176,24 +176,73 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			/*System.out.print(waitQueue.getLast());
-			return getThreadState(waitQueue.getLast());*/
-			// implement me
-			KThread nextthread = null;
-			int maxPriority = -1;
-			for (KThread thread : waitQueue)
-				if (nextthread == null || getEffectivePriority(thread) > maxPriority) {
-					nextthread = thread;
-					maxPriority = getEffectivePriority(thread);
-				}
-			if (nextthread == null)
+			int priority = topPriority();
+			if (priority < 0)
 				return null;
-			return getThreadState(nextthread);
+
+			return heads[priority];
+		}
+
+		/**
+		 * Return the highest effective priority of any waiting thread.
+		 * 
+		 * @return the highest effective priority of any waiting thread, or
+		 * -1 if no threads are waiting.
+		 */
+		protected int topPriority() {
+			return 31 - Integer.numberOfLeadingZeros(nonEmpty);
+		}
+
+		/**
+		 * Add a waiting thread to the bucket for its effective priority.
+		 * 
+		 * @param threadState the waiting thread.
+		 */
+		void add(ThreadState threadState) {
+			int priority = threadState.effectivePriority;
+
+			threadState.prev = tails[priority];
+			threadState.next = null;
+			if (tails[priority] == null)
+				heads[priority] = threadState;
+			else
+				tails[priority].next = threadState;
+			tails[priority] = threadState;
+
+			nonEmpty |= 1 << priority;
+			threadState.queuedPriority = priority;
+		}
+
+		/**
+		 * Remove a waiting thread from its bucket.
+		 * 
+		 * @param threadState the waiting thread.
+		 */
+		void remove(ThreadState threadState) {
+			int priority = threadState.queuedPriority;
+
+			if (threadState.prev == null)
+				heads[priority] = threadState.next;
+			else
+				threadState.prev.next = threadState.next;
+			if (threadState.next == null)
+				tails[priority] = threadState.prev;
+			else
+				threadState.next.prev = threadState.prev;
+			threadState.prev = threadState.next = null;
+
+			if (heads[priority] == null)
+				nonEmpty &= ~(1 << priority);
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int priority = priorityMaximum; priority >= priorityMinimum; priority--) {
+				for (ThreadState threadState = heads[priority]; threadState != null;
+						threadState = threadState.next)
+					System.out.print(threadState.thread + " ");
+			}
 		}
 
 		/**
@@ -201,10 +250,28 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
-		LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+
+		/**
+		 * The first waiting thread in each bucket, indexed by effective
+		 * priority.
+		 */
+		ThreadState[] heads = new ThreadState[priorityMaximum + 1];
+
+		/**
+		 * The last waiting thread in each bucket, indexed by effective
+		 * priority.
+		 */
+		ThreadState[] tails = new ThreadState[priorityMaximum + 1];
+
+		/** Bit <i>p</i> is set if <tt>buckets[p]</tt> is non-empty. */
+		int nonEmpty = 0;
+
 		ThreadState lockHolder = null;
 	}
 
+	/** Incremented each time <tt>ThreadState.update()</tt> is called. */
+	private static long numUpdates = 0;
+
 	/**
 	 * The scheduling state of a thread. This should include the thread's
 	 * priority, its effective priority, any objects it owns, and the queue it's
@@ -241,39 +308,28 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			return getEffectivePriority(new HashSet<ThreadState>());
+			return effectivePriority;
 		}
-		private int getEffectivePriority(HashSet<ThreadState> set) {
-			
-			if (set.contains(this)) {
-				return priority;
-			}
 
-			effectivePriority = priority;
+		/**
+		 * Compute the effective priority of the associated thread from its
+		 * own priority and the highest effective priority waiting on each
+		 * queue it holds that transfers priority. This only looks at the
+		 * queues the thread holds, not at the threads waiting on them.
+		 * 
+		 * @return the effective priority of the associated thread.
+		 */
+		protected int computeEffectivePriority() {
+			int effectivePriority = priority;
 
 			for (PriorityQueue queue : donationQueue)
 				if (queue.transferPriority)
-					for (KThread thread : queue.waitQueue) {
-						set.add(this);
-						int p = getThreadState(thread)
-								.getEffectivePriority(set);
-						set.remove(this);
-						if (p > effectivePriority)
-							effectivePriority = p;
-					}
-			
-			PriorityQueue queue = (PriorityQueue) thread.readyQueue;
-			if (queue.transferPriority)
-				for (KThread thread : queue.waitQueue) {
-					set.add(this);
-					int p = getThreadState(thread).getEffectivePriority(set);
-					set.remove(this);
-					if (p > effectivePriority)
-						effectivePriority = p;
-				}
+					effectivePriority = Math.max(effectivePriority,
+							queue.topPriority());
 
 			return effectivePriority;
 		}
+
 		/**
 		 * Set the priority of the associated thread to the specified value.
 		 * 
@@ -310,10 +366,10 @@ public class PriorityScheduler extends Scheduler {
 			if(KThread.currentThread()!=thread&&priority1<priority2) {
 				KThread.currentThread().yield();
 			}*/
-			waitQueue.waitQueue.add(thread);
-			if (waitQueue.lockHolder == null)
-				return;
-			waitQueue.lockHolder.update();
+			waitingOn = waitQueue;
+			waitQueue.add(this);
+			if (waitQueue.transferPriority && waitQueue.lockHolder != null)
+				waitQueue.lockHolder.update();
 		}
 
 		/**
@@ -333,23 +389,78 @@ public class PriorityScheduler extends Scheduler {
         		this.effectivePriority = invalidPriority;
         		acquired.add(waitQueue);
     		}*/
-			waitQueue.waitQueue.remove(thread);
+			if (waitingOn == waitQueue) {
+				waitQueue.remove(this);
+				waitingOn = null;
+			}
 			waitQueue.lockHolder = this;
 			donationQueue.add(waitQueue);
 			update();
 		}
+		/**
+		 * Recompute the effective priority of the associated thread. If it
+		 * changed, move the thread to its new bucket in the queue it is
+		 * waiting on, and carry on with the thread holding that queue, until
+		 * a thread's effective priority does not change. The work done is
+		 * proportional to the length of the chain of lock holders the change
+		 * reaches, not to the number of threads waiting on those locks.
+		 * 
+		 * <p>
+		 * Each thread is visited at most once per update, so this terminates
+		 * even if the holders form a cycle (a deadlock).
+		 */
 		public void update() {
-			effectivePriority = expiredEffectivePriority;
-			effectivePriority=getEffectivePriority();
+			long pass = ++numUpdates;
+			ThreadState threadState = this;
+
+			while (threadState.lastUpdate != pass) {
+				threadState.lastUpdate = pass;
+
+				int effectivePriority = threadState.computeEffectivePriority();
+				if (effectivePriority == threadState.effectivePriority)
+					return;
+
+				threadState.effectivePriority = effectivePriority;
+
+				PriorityQueue queue = threadState.waitingOn;
+				if (queue == null)
+					return;
+
+				queue.remove(threadState);
+				queue.add(threadState);
+
+				if (!queue.transferPriority || queue.lockHolder == null)
+					return;
+
+				threadState = queue.lockHolder;
+			}
 		}
+
 		/** The thread with which this object is associated. */
 		protected KThread thread;
 
 		/** The priority of the associated thread. */
 		protected int priority;
-		protected int effectivePriority = expiredEffectivePriority;
-		protected static final int expiredEffectivePriority = -1;
+
+		/**
+		 * The effective priority of the associated thread, kept up to date by
+		 * <tt>update()</tt>.
+		 */
+		protected int effectivePriority;
+
+		/** The queues the associated thread holds. */
 		protected LinkedList<PriorityQueue> donationQueue = new LinkedList<PriorityQueue>();
-		protected HashSet<nachos.threads.PriorityScheduler.PriorityQueue> acquired = new HashSet<nachos.threads.PriorityScheduler.PriorityQueue>();
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected PriorityQueue waitingOn = null;
+
+		/** The bucket of <tt>waitingOn</tt> the thread is in. */
+		int queuedPriority;
+
+		/** The threads before and after this one in its bucket. */
+		ThreadState prev = null, next = null;
+
+		/** The last call to <tt>update()</tt> that visited this thread. */
+		long lastUpdate = 0;
 	}
 }
@@ -9,9 +9,13 @@ import nachos.machine.*;
  */
 public abstract class Scheduler {
 	/**
-	 * Allocate a new scheduler.
+	 * Allocate a new scheduler. The default time slice is read from
+	 * <tt>Scheduler.quantum</tt>, and is <tt>Stats.TimerTicks</tt> if that key
+	 * is not set.
 	 */
 	public Scheduler() {
+		defaultQuantum = Config.getInteger("Scheduler.quantum", Stats.TimerTicks);
+		Lib.assertTrue(defaultQuantum >= 0);
 	}
 
 	/**
@@ -151,4 +155,51 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Return the length of the specified thread's time slice, in ticks. The
+	 * alarm's timer interrupt handler only preempts a thread once it has run
+	 * for about this long since it was last dispatched. Since the timer only
+	 * interrupts about every <tt>Stats.TimerTicks</tt> ticks, the thread is
+	 * preempted at the interrupt closest to the end of its slice; a time
+	 * slice of 0 preempts the current thread at every timer interrupt. Must
+	 * be called with interrupts disabled.
+	 * 
+	 * <p>
+	 * The default is the same for every thread. A scheduler can override
+	 * this to give threads different time slices.
+	 * 
+	 * @param thread the thread to get the time slice of.
+	 * @return the thread's time slice.
+	 */
+	public int getQuantum(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		return defaultQuantum;
+	}
+
+	/**
+	 * Called by the alarm's timer interrupt handler, with interrupts
+	 * disabled, just before it preempts the current thread at the end of its
+	 * time slice.
+	 * 
+	 * @param thread the current thread.
+	 */
+	public void quantumExpired(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	/**
+	 * Called with interrupts disabled when the current thread is about to
+	 * block waiting for a device, such as the console or the file system. A
+	 * scheduler that favors I/O-bound threads can use this to raise the
+	 * thread's priority.
+	 * 
+	 * @param thread the current thread.
+	 */
+	public void blockingOnIO(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	/** The time slice given to every thread by default. */
+	protected int defaultQuantum;
 }
@@ -91,4 +91,6 @@ public class ThreadedKernel extends Kernel {
 	private static Rider dummy6 = null;
 
 	private static ElevatorController dummy7 = null;
+
+	private static MLFQScheduler dummy8 = null;
 }
@@ -0,0 +1,301 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * Keeps track of which pages of physical memory are free, using one bit per
+ * page. A second, summary bitmap has one bit per word of the first, set when
+ * that word has a free page in it, so finding a free page never has to look
+ * at more than a few words even when almost all of memory is in use.
+ *
+ * <p>
+ * Pages are handed out lowest first. Besides single pages, a page allocator
+ * can allocate and free any number of pages at once into an <tt>int</tt>
+ * array supplied by the caller, and can allocate runs of physically
+ * contiguous pages.
+ *
+ * <p>
+ * A page allocator does no synchronization of its own; <tt>UserKernel</tt>
+ * disables interrupts around each call.
+ */
+public class PageAllocator {
+	/**
+	 * Allocate a new page allocator, with every page free.
+	 *
+	 * @param numPages the number of pages of physical memory.
+	 */
+	public PageAllocator(int numPages) {
+		Lib.assertTrue(numPages >= 0);
+
+		this.numPages = numPages;
+
+		int numWords = (numPages + 63) >>> 6;
+		freeBits = new long[numWords];
+		summaryBits = new long[(numWords + 63) >>> 6];
+
+		for (int ppn = 0; ppn < numPages; ppn++)
+			setFree(ppn);
+
+		numFree = numPages;
+	}
+
+	/**
+	 * Return the number of pages of physical memory.
+	 *
+	 * @return the number of pages of physical memory.
+	 */
+	public int getNumPages() {
+		return numPages;
+	}
+
+	/**
+	 * Return the number of free pages.
+	 *
+	 * @return the number of free pages.
+	 */
+	public int getNumFreePages() {
+		return numFree;
+	}
+
+	/**
+	 * Test whether the specified page is free.
+	 *
+	 * @param ppn the physical page number.
+	 * @return <tt>true</tt> if the page is free.
+	 */
+	public boolean isFree(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPages);
+
+		return (freeBits[ppn >>> 6] & (1L << ppn)) != 0;
+	}
+
+	/**
+	 * Allocate a single page.
+	 *
+	 * @return the physical page number of the page, or -1 if no pages are
+	 * free.
+	 */
+	public int allocate() {
+		int word = findFreeWord();
+		if (word == -1)
+			return -1;
+
+		int ppn = (word << 6) + Long.numberOfTrailingZeros(freeBits[word]);
+		setAllocated(ppn);
+		numFree--;
+
+		return ppn;
+	}
+
+	/**
+	 * Allocate a number of pages, which need not be contiguous, and store
+	 * their physical page numbers in the specified array. Either all of the
+	 * pages are allocated or none of them are.
+	 *
+	 * @param ppns the array in which to store the physical page numbers.
+	 * @param offset the first element of <tt>ppns</tt> to store into.
+	 * @param num the number of pages to allocate.
+	 * @return <tt>true</tt> if the pages were allocated, or <tt>false</tt> if
+	 * there are not enough free pages.
+	 */
+	public boolean allocate(int[] ppns, int offset, int num) {
+		Lib.assertTrue(num >= 0 && offset >= 0 && offset + num <= ppns.length);
+
+		if (num > numFree)
+			return false;
+
+		int i = 0;
+		while (i < num) {
+			int word = findFreeWord();
+			long bits = freeBits[word];
+
+			// take as many pages from this word as are needed
+			while (bits != 0 && i < num) {
+				ppns[offset + i++] = (word << 6)
+						+ Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+			}
+
+			freeBits[word] = bits;
+			if (bits == 0)
+				summaryBits[word >>> 6] &= ~(1L << word);
+		}
+
+		numFree -= num;
+
+		return true;
+	}
+
+	/**
+	 * Allocate a run of physically contiguous pages. The lowest run of free
+	 * pages that is long enough is used.
+	 *
+	 * @param num the number of pages to allocate.
+	 * @return the physical page number of the first page of the run, or -1 if
+	 * there is no run of that many free pages.
+	 */
+	public int allocateContiguous(int num) {
+		Lib.assertTrue(num > 0);
+
+		if (num > numFree)
+			return -1;
+
+		int runStart = 0, runLength = 0;
+
+		// no run can start below the lowest free page
+		for (int ppn = findFreeWord() << 6; ppn < numPages;) {
+			long bits = freeBits[ppn >>> 6] >>> ppn;
+
+			if (bits == 0) {
+				// the rest of this word is in use
+				runLength = 0;
+				ppn = (ppn | 63) + 1;
+			}
+			else if ((bits & 1) == 0) {
+				// skip to the next free page in this word
+				runLength = 0;
+				ppn += Long.numberOfTrailingZeros(bits);
+			}
+			else {
+				// count the free pages starting here in this word; the bits
+				// shifted in at the top are zero, so this stops at the end of
+				// the word
+				int free = Long.numberOfTrailingZeros(~bits);
+
+				if (runLength == 0)
+					runStart = ppn;
+				runLength += free;
+				ppn += free;
+
+				if (runLength >= num) {
+					setRange(runStart, num, false);
+					numFree -= num;
+					return runStart;
+				}
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Free a single page.
+	 *
+	 * @param ppn the physical page number of the page.
+	 */
+	public void free(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPages && !isFree(ppn),
+				"freeing a page that is not allocated");
+
+		setFree(ppn);
+		numFree++;
+	}
+
+	/**
+	 * Free a number of pages.
+	 *
+	 * @param ppns the physical page numbers of the pages.
+	 * @param offset the first element of <tt>ppns</tt> to free.
+	 * @param num the number of pages to free.
+	 */
+	public void free(int[] ppns, int offset, int num) {
+		Lib.assertTrue(num >= 0 && offset >= 0 && offset + num <= ppns.length);
+
+		for (int i = offset; i < offset + num; i++)
+			free(ppns[i]);
+	}
+
+	/**
+	 * Free a run of physically contiguous pages.
+	 *
+	 * @param firstPPN the physical page number of the first page of the run.
+	 * @param num the number of pages in the run.
+	 */
+	public void freeContiguous(int firstPPN, int num) {
+		Lib.assertTrue(num >= 0 && firstPPN >= 0 && firstPPN + num <= numPages);
+
+		setRange(firstPPN, num, true);
+		numFree += num;
+	}
+
+	/**
+	 * Return the index of the lowest word of <tt>freeBits</tt> with a free page
+	 * in it.
+	 *
+	 * @return the index of the word, or -1 if no pages are free.
+	 */
+	private int findFreeWord() {
+		for (int i = firstSummary; i < summaryBits.length; i++) {
+			if (summaryBits[i] != 0) {
+				firstSummary = i;
+				return (i << 6) + Long.numberOfTrailingZeros(summaryBits[i]);
+			}
+		}
+
+		firstSummary = summaryBits.length;
+		return -1;
+	}
+
+	private void setFree(int ppn) {
+		int word = ppn >>> 6;
+
+		freeBits[word] |= 1L << ppn;
+		summaryBits[word >>> 6] |= 1L << word;
+
+		if ((word >>> 6) < firstSummary)
+			firstSummary = word >>> 6;
+	}
+
+	private void setAllocated(int ppn) {
+		int word = ppn >>> 6;
+
+		freeBits[word] &= ~(1L << ppn);
+		if (freeBits[word] == 0)
+			summaryBits[word >>> 6] &= ~(1L << word);
+	}
+
+	/**
+	 * Mark a run of pages free or allocated, a word at a time, checking that
+	 * none of them is already in that state.
+	 */
+	private void setRange(int firstPPN, int num, boolean free) {
+		int end = firstPPN + num;
+
+		for (int ppn = firstPPN; ppn < end;) {
+			int word = ppn >>> 6;
+			int count = Math.min(64 - (ppn & 63), end - ppn);
+			long mask = (count == 64 ? -1L : (1L << count) - 1) << ppn;
+
+			if (free) {
+				Lib.assertTrue((freeBits[word] & mask) == 0,
+						"freeing a page that is not allocated");
+				freeBits[word] |= mask;
+				summaryBits[word >>> 6] |= 1L << word;
+
+				if ((word >>> 6) < firstSummary)
+					firstSummary = word >>> 6;
+			}
+			else {
+				Lib.assertTrue((freeBits[word] & mask) == mask);
+				freeBits[word] &= ~mask;
+				if (freeBits[word] == 0)
+					summaryBits[word >>> 6] &= ~(1L << word);
+			}
+
+			ppn += count;
+		}
+	}
+
+	private int numPages;
+
+	private int numFree;
+
+	/** One bit per page, set if the page is free. */
+	private long[] freeBits;
+
+	/** One bit per word of <tt>freeBits</tt>, set if the word is not zero. */
+	private long[] summaryBits;
+
+	/** No word of <tt>summaryBits</tt> below this one is non-zero. */
+	private int firstSummary = 0;
+}
@@ -0,0 +1,208 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * A range of a process's virtual memory, resolved into the runs of physical
+ * memory that hold it. Pages that are next to each other in physical memory
+ * are merged into one run, so a range usually takes only a few runs.
+ * Filled in by <tt>UserProcess.translateVirtualMemory()</tt>, and meant to be
+ * reused from one translation to the next.
+ *
+ * <p>
+ * The runs are only good until the kernel next blocks, since a page may be
+ * moved out of physical memory while it does.
+ */
+public class PhysicalExtents {
+	/**
+	 * Allocate a new, empty list of runs.
+	 */
+	public PhysicalExtents() {
+	}
+
+	/**
+	 * Empty this list.
+	 */
+	public void clear() {
+		numExtents = 0;
+		totalLength = 0;
+	}
+
+	/**
+	 * Append a run of physical memory to this list, merging it with the last
+	 * run if they are next to each other.
+	 *
+	 * @param paddr the physical address of the run.
+	 * @param length the number of bytes in the run.
+	 */
+	public void add(int paddr, int length) {
+		Lib.assertTrue(paddr >= 0 && length > 0);
+
+		totalLength += length;
+
+		if (numExtents > 0
+				&& addresses[numExtents - 1] + lengths[numExtents - 1] == paddr) {
+			lengths[numExtents - 1] += length;
+			return;
+		}
+
+		if (numExtents == addresses.length) {
+			int[] grownAddresses = new int[2 * numExtents];
+			int[] grownLengths = new int[2 * numExtents];
+			System.arraycopy(addresses, 0, grownAddresses, 0, numExtents);
+			System.arraycopy(lengths, 0, grownLengths, 0, numExtents);
+			addresses = grownAddresses;
+			lengths = grownLengths;
+		}
+
+		addresses[numExtents] = paddr;
+		lengths[numExtents] = length;
+		numExtents++;
+	}
+
+	/**
+	 * Return the number of runs in this list.
+	 *
+	 * @return the number of runs.
+	 */
+	public int getNumExtents() {
+		return numExtents;
+	}
+
+	/**
+	 * Return the physical address of the specified run.
+	 *
+	 * @param i the index of the run.
+	 * @return the physical address of the run.
+	 */
+	public int getAddress(int i) {
+		Lib.assertTrue(i >= 0 && i < numExtents);
+
+		return addresses[i];
+	}
+
+	/**
+	 * Return the length of the specified run.
+	 *
+	 * @param i the index of the run.
+	 * @return the number of bytes in the run.
+	 */
+	public int getLength(int i) {
+		Lib.assertTrue(i >= 0 && i < numExtents);
+
+		return lengths[i];
+	}
+
+	/**
+	 * Return the total length of the runs in this list.
+	 *
+	 * @return the number of bytes in all the runs.
+	 */
+	public int getTotalLength() {
+		return totalLength;
+	}
+
+	/**
+	 * Search the memory in this list for a byte, without copying it.
+	 *
+	 * @param value the byte to search for.
+	 * @return the offset of the first occurrence of the byte from the start of
+	 * the range, or -1 if it does not occur.
+	 */
+	public int indexOf(byte value) {
+		byte[] memory = Machine.processor().getMemory();
+
+		int offset = 0;
+		for (int i = 0; i < numExtents; i++) {
+			int paddr = addresses[i];
+			for (int j = 0; j < lengths[i]; j++) {
+				if (memory[paddr + j] == value)
+					return offset + j;
+			}
+
+			offset += lengths[i];
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Copy bytes from the start of the range into an array.
+	 *
+	 * @param length the number of bytes to copy.
+	 * @param data the array to copy into.
+	 * @param offset the first byte to write in the array.
+	 */
+	public void read(int length, byte[] data, int offset) {
+		Lib.assertTrue(length >= 0 && length <= totalLength);
+
+		byte[] memory = Machine.processor().getMemory();
+
+		for (int i = 0; i < numExtents && length > 0; i++) {
+			int amount = Math.min(length, lengths[i]);
+			System.arraycopy(memory, addresses[i], data, offset, amount);
+			offset += amount;
+			length -= amount;
+		}
+	}
+
+	/**
+	 * Copy bytes from an array to the start of the range, discarding any
+	 * instructions the processor has cached for the pages written.
+	 *
+	 * @param data the array to copy from.
+	 * @param offset the first byte to read from the array.
+	 * @param length the number of bytes to copy.
+	 */
+	public void write(byte[] data, int offset, int length) {
+		Lib.assertTrue(length >= 0 && length <= totalLength);
+
+		Processor processor = Machine.processor();
+		byte[] memory = processor.getMemory();
+
+		for (int i = 0; i < numExtents && length > 0; i++) {
+			int amount = Math.min(length, lengths[i]);
+			System.arraycopy(data, offset, memory, addresses[i], amount);
+
+			int firstPPN = addresses[i] / pageSize;
+			int lastPPN = (addresses[i] + amount - 1) / pageSize;
+			for (int ppn = firstPPN; ppn <= lastPPN; ppn++)
+				processor.invalidatePage(ppn);
+
+			offset += amount;
+			length -= amount;
+		}
+	}
+
+	/**
+	 * Return the bytes at the start of the range as a string. A string that
+	 * lies in a single run is made straight from physical memory.
+	 *
+	 * @param length the number of bytes in the string.
+	 * @return the string.
+	 */
+	public String getString(int length) {
+		Lib.assertTrue(length >= 0 && length <= totalLength);
+
+		if (length == 0)
+			return "";
+
+		if (lengths[0] >= length)
+			return new String(Machine.processor().getMemory(), addresses[0],
+					length);
+
+		byte[] bytes = new byte[length];
+		read(length, bytes, 0);
+		return new String(bytes);
+	}
+
+	private int numExtents = 0;
+
+	private int totalLength = 0;
+
+	private int[] addresses = new int[4];
+
+	private int[] lengths = new int[4];
+
+	private static final int pageSize = Processor.pageSize;
+}
@@ -46,6 +46,10 @@ public class SynchConsole {
 		readLock.acquire();
 
 		if (block || charAvailable) {
+			// only a read that has to wait for a byte counts as blocking
+			if (!charAvailable)
+				ThreadedKernel.scheduler.blockingOnIO(KThread.currentThread());
+
 			charAvailable = false;
 			readWait.P();
 
@@ -83,6 +87,11 @@ public class SynchConsole {
 	public void writeByte(int value) {
 		writeLock.acquire();
 		console.writeByte(value);
+
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.blockingOnIO(KThread.currentThread());
+		Machine.interrupt().restore(intStatus);
+
 		writeWait.P();
 		writeLock.release();
 	}
@@ -0,0 +1,182 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * Counts the syscalls user processes make, and how long each one took to
+ * return. Simulated time is always recorded; real time varies from run to run,
+ * so it is recorded only if asked for.
+ */
+public class SyscallStats {
+	/**
+	 * Allocate a new syscall statistics object.
+	 *
+	 * @param recordLatency <tt>true</tt> if the real time each syscall takes
+	 * should be recorded and printed.
+	 */
+	public SyscallStats(boolean recordLatency) {
+		this.recordLatency = recordLatency;
+	}
+
+	/**
+	 * Test whether this object records the real time each syscall takes.
+	 *
+	 * @return <tt>true</tt> if real time is recorded.
+	 */
+	public boolean recordsLatency() {
+		return recordLatency;
+	}
+
+	/**
+	 * Print out the statistics in this object, one line for each syscall that
+	 * has been called.
+	 */
+	public void print() {
+		for (int i = 0; i < syscallCalls.length; i++) {
+			if (syscallCalls[i] == 0)
+				continue;
+
+			String line = "Syscall " + syscallNames[i] + ": calls "
+					+ syscallCalls[i];
+
+			long returns = syscallReturns[i];
+			if (returns > 0) {
+				line += ", ticks average " + (syscallTicks[i] / returns) + " "
+						+ histogram(syscallTickHistograms[i]);
+
+				if (recordLatency) {
+					line += ", ns average " + (syscallNanos[i] / returns) + " "
+							+ histogram(syscallNanoHistograms[i]);
+				}
+			}
+
+			System.out.println(line);
+		}
+	}
+
+	/**
+	 * Record that a syscall has been called. Called by the kernel on entry to
+	 * every syscall.
+	 *
+	 * @param syscall the syscall number.
+	 * @param name the name of the syscall.
+	 */
+	public void syscallCalled(int syscall, String name) {
+		Lib.assertTrue(syscall >= 0);
+
+		if (syscall >= syscallCalls.length)
+			growSyscalls(syscall + 1);
+
+		syscallNames[syscall] = name;
+		syscallCalls[syscall]++;
+	}
+
+	/**
+	 * Record how long a syscall took. Called by the kernel when a syscall
+	 * returns to the user program; a syscall that does not return (such as
+	 * <tt>exit()</tt>) is counted by <tt>syscallCalled()</tt> only.
+	 *
+	 * @param syscall the syscall number.
+	 * @param ticks the simulated time the syscall took.
+	 * @param nanos the real time the syscall took, in nanoseconds, which is
+	 * ignored unless real time is recorded.
+	 */
+	public void syscallReturned(int syscall, long ticks, long nanos) {
+		Lib.assertTrue(syscall >= 0 && syscall < syscallCalls.length);
+
+		syscallReturns[syscall]++;
+		syscallTicks[syscall] += ticks;
+		syscallTickHistograms[syscall][bucket(ticks)]++;
+
+		if (recordLatency) {
+			syscallNanos[syscall] += nanos;
+			syscallNanoHistograms[syscall][bucket(nanos)]++;
+		}
+	}
+
+	private void growSyscalls(int size) {
+		String[] names = new String[size];
+		System.arraycopy(syscallNames, 0, names, 0, syscallNames.length);
+		syscallNames = names;
+
+		syscallCalls = grow(syscallCalls, size);
+		syscallReturns = grow(syscallReturns, size);
+		syscallTicks = grow(syscallTicks, size);
+		syscallNanos = grow(syscallNanos, size);
+
+		long[][] tickHistograms = new long[size][];
+		long[][] nanoHistograms = new long[size][];
+		for (int i = 0; i < size; i++) {
+			if (i < syscallTickHistograms.length) {
+				tickHistograms[i] = syscallTickHistograms[i];
+				nanoHistograms[i] = syscallNanoHistograms[i];
+			}
+			else {
+				tickHistograms[i] = new long[numBuckets];
+				nanoHistograms[i] = new long[numBuckets];
+			}
+		}
+		syscallTickHistograms = tickHistograms;
+		syscallNanoHistograms = nanoHistograms;
+	}
+
+	private static long[] grow(long[] array, int size) {
+		long[] grown = new long[size];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	/**
+	 * Return the histogram bucket for a latency: bucket 0 holds 0, and bucket
+	 * <i>k</i> holds latencies from <i>2<sup>k-1</sup></i> up to
+	 * <i>2<sup>k</sup> - 1</i>.
+	 */
+	private static int bucket(long latency) {
+		return 64 - Long.numberOfLeadingZeros(Math.max(0, latency));
+	}
+
+	/**
+	 * Format the non-empty buckets of a histogram, each as the upper bound of
+	 * the bucket and its count.
+	 */
+	private static String histogram(long[] counts) {
+		StringBuffer buffer = new StringBuffer("[");
+
+		for (int k = 0; k < numBuckets; k++) {
+			if (counts[k] == 0)
+				continue;
+
+			if (buffer.length() > 1)
+				buffer.append(' ');
+			buffer.append("<" + (1L << k) + ":" + counts[k]);
+		}
+
+		return buffer.append(']').toString();
+	}
+
+	/** The name of each syscall that has been called. */
+	private String[] syscallNames = new String[0];
+
+	/** The number of times each syscall has been called. */
+	private long[] syscallCalls = new long[0];
+
+	/** The number of times each syscall has returned. */
+	private long[] syscallReturns = new long[0];
+
+	/** The total simulated time spent in each syscall. */
+	private long[] syscallTicks = new long[0];
+
+	/** The total real time spent in each syscall, in nanoseconds. */
+	private long[] syscallNanos = new long[0];
+
+	/** Histograms of the simulated time each syscall took. */
+	private long[][] syscallTickHistograms = new long[0][];
+
+	/** Histograms of the real time each syscall took. */
+	private long[][] syscallNanoHistograms = new long[0][];
+
+	/** Whether the real time each syscall takes is recorded. */
+	private boolean recordLatency;
+
+	private static final int numBuckets = 64;
+}
@@ -0,0 +1,276 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Hashtable;
+
+/**
+ * A cache of the pages of read-only COFF sections that are in physical
+ * memory, found by executable name, section number and page number. Every
+ * process running the same executable maps the same physical page for each
+ * page of its read-only sections, instead of reading a copy of it from the
+ * file system.
+ *
+ * <p>
+ * Each page is reference counted. A page that no process maps any longer is
+ * kept in the cache, so that the next process to run the executable can map
+ * it again, until <tt>reclaim()</tt> frees it for other use. The pages of an
+ * executable that is written to or removed are dropped by
+ * <tt>invalidate()</tt>, so later processes read the file again.
+ */
+public class TextPageCache {
+	/**
+	 * Allocate a new, empty cache.
+	 *
+	 * @param numPhysPages
+	 *            the number of pages of physical memory.
+	 */
+	public TextPageCache(int numPhysPages) {
+		refCounts = new int[numPhysPages];
+		owners = new int[numPhysPages][];
+		ownerIndices = new int[numPhysPages];
+	}
+
+	/**
+	 * Map every page of a read-only section, reading the pages that are not
+	 * cached from the executable into newly allocated physical pages, and add
+	 * a reference to each. Either all of the pages are mapped or none of them
+	 * are.
+	 *
+	 * @param name
+	 *            the name of the executable.
+	 * @param coff
+	 *            the executable.
+	 * @param s
+	 *            the section number.
+	 * @param ppns
+	 *            the array in which to store the physical page numbers.
+	 * @param offset
+	 *            the first element of <tt>ppns</tt> to store into.
+	 * @return <tt>true</tt> if the section was mapped.
+	 */
+	public boolean acquire(String name, Coff coff, int s, int[] ppns,
+			int offset) {
+		CoffSection section = coff.getSection(s);
+		Lib.assertTrue(section.isReadOnly());
+
+		lock.acquire();
+
+		int[][] sections = executables.get(name);
+		if (sections == null || sections.length != coff.getNumSections()) {
+			sections = new int[coff.getNumSections()][];
+			executables.put(name, sections);
+		}
+
+		if (sections[s] == null || sections[s].length != section.getLength()) {
+			sections[s] = new int[section.getLength()];
+			for (int i = 0; i < sections[s].length; i++)
+				sections[s][i] = -1;
+		}
+
+		int[] cached = sections[s];
+
+		// allocate the pages that are not cached all at once, taking pages
+		// no process is using from other sections if memory is short
+		int numMissing = 0;
+		for (int i = 0; i < cached.length; i++) {
+			if (cached[i] == -1)
+				numMissing++;
+		}
+
+		int[] allocated = UserKernel.allocatePages(numMissing);
+		if (allocated == null) {
+			reclaimLocked(numMissing - UserKernel.getNumFreePages(), cached);
+			allocated = UserKernel.allocatePages(numMissing);
+		}
+
+		if (allocated == null) {
+			lock.release();
+			return false;
+		}
+
+		int numLoaded = 0;
+		for (int i = 0; i < cached.length; i++) {
+			int ppn = cached[i];
+
+			if (ppn == -1) {
+				ppn = allocated[numLoaded++];
+				section.loadPage(i, ppn);
+
+				cached[i] = ppn;
+				owners[ppn] = cached;
+				ownerIndices[ppn] = i;
+			}
+
+			refCounts[ppn]++;
+			ppns[offset + i] = ppn;
+		}
+
+		UserKernel.numTextPagesLoaded += numLoaded;
+		UserKernel.numTextPagesShared += cached.length - numLoaded;
+
+		lock.release();
+
+		return true;
+	}
+
+	/**
+	 * Add a reference to each of a number of physical pages returned by
+	 * <tt>acquire()</tt>, for a process that maps them as well.
+	 *
+	 * @param ppns
+	 *            the physical page numbers.
+	 * @param offset
+	 *            the first element of <tt>ppns</tt> to share.
+	 * @param num
+	 *            the number of pages to share.
+	 */
+	public void share(int[] ppns, int offset, int num) {
+		lock.acquire();
+
+		for (int i = offset; i < offset + num; i++) {
+			Lib.assertTrue(refCounts[ppns[i]] > 0);
+			refCounts[ppns[i]]++;
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * Remove a reference to each of a number of physical pages returned by
+	 * <tt>acquire()</tt>. A page stays cached if nothing else references it,
+	 * unless its executable has been invalidated, in which case it is freed.
+	 *
+	 * @param ppns
+	 *            the physical page numbers.
+	 * @param offset
+	 *            the first element of <tt>ppns</tt> to release.
+	 * @param num
+	 *            the number of pages to release.
+	 */
+	public void release(int[] ppns, int offset, int num) {
+		lock.acquire();
+		releaseLocked(ppns, offset, num);
+		lock.release();
+	}
+
+	private void releaseLocked(int[] ppns, int offset, int num) {
+		int[] freed = null;
+		int numFreed = 0;
+
+		for (int i = offset; i < offset + num; i++) {
+			int ppn = ppns[i];
+			Lib.assertTrue(refCounts[ppn] > 0);
+
+			if (--refCounts[ppn] == 0 && owners[ppn] == null) {
+				if (freed == null)
+					freed = new int[num];
+				freed[numFreed++] = ppn;
+			}
+		}
+
+		if (numFreed > 0)
+			UserKernel.releasePages(freed, 0, numFreed);
+	}
+
+	/**
+	 * Free up to the specified number of cached pages that no process
+	 * references.
+	 *
+	 * @param num
+	 *            the number of pages wanted.
+	 * @return the number of pages freed.
+	 */
+	public int reclaim(int num) {
+		lock.acquire();
+		int numFreed = reclaimLocked(num, null);
+		lock.release();
+
+		return numFreed;
+	}
+
+	private int reclaimLocked(int num, int[] keep) {
+		if (num <= 0)
+			return 0;
+
+		int[] freed = new int[num];
+		int numFreed = 0;
+
+		for (int ppn = 0; ppn < owners.length && numFreed < num; ppn++) {
+			if (owners[ppn] != null && owners[ppn] != keep
+					&& refCounts[ppn] == 0) {
+				drop(ppn);
+				freed[numFreed++] = ppn;
+			}
+		}
+
+		UserKernel.releasePages(freed, 0, numFreed);
+
+		return numFreed;
+	}
+
+	/**
+	 * Drop every cached page of the specified executable. Pages that are
+	 * still referenced are freed when their last reference is released. Does
+	 * not take the cache's lock unless the executable has cached pages, since
+	 * this is called on every write to a file.
+	 *
+	 * @param name
+	 *            the name of the executable.
+	 */
+	public void invalidate(String name) {
+		if (name == null || !executables.containsKey(name))
+			return;
+
+		lock.acquire();
+
+		int[][] sections = executables.remove(name);
+		if (sections != null) {
+			for (int s = 0; s < sections.length; s++) {
+				if (sections[s] == null)
+					continue;
+
+				for (int i = 0; i < sections[s].length; i++) {
+					int ppn = sections[s][i];
+					if (ppn == -1)
+						continue;
+
+					drop(ppn);
+					if (refCounts[ppn] == 0)
+						UserKernel.releasePage(ppn);
+				}
+			}
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * Forget which section page a physical page holds.
+	 */
+	private void drop(int ppn) {
+		owners[ppn][ownerIndices[ppn]] = -1;
+		owners[ppn] = null;
+	}
+
+	private Lock lock = new Lock();
+
+	/**
+	 * The physical page holding each page of each read-only section of each
+	 * executable, or -1, by executable name and section number.
+	 */
+	private Hashtable<String, int[][]> executables = new Hashtable<String, int[][]>();
+
+	/** The number of processes mapping each physical page. */
+	private int[] refCounts;
+
+	/**
+	 * The section array of <tt>executables</tt> that refers to each physical
+	 * page, or <tt>null</tt> if the page is not cached.
+	 */
+	private int[][] owners;
+
+	/** The index of each physical page in its owner's array. */
+	private int[] ownerIndices;
+}
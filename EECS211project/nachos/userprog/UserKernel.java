@@ -1,7 +1,5 @@
 package nachos.userprog;
 
-import java.util.LinkedList;
-
 import nachos.machine.*;
 import nachos.threads.*;
 
@@ -18,17 +16,22 @@ public class UserKernel extends ThreadedKernel {
 
 	/**
 	 * Initialize this kernel. Creates a synchronized console and sets the
-	 * processor's exception handler.
+	 * processor's exception handler. The real time each syscall takes is
+	 * recorded only if <tt>UserKernel.syscallLatency</tt> is true.
 	 */
 	public void initialize(String[] args) {
 		super.initialize(args);
 
 		console = new SynchConsole(Machine.console());
 
-		listLock = new Lock();
-		freePages = new LinkedList<Integer>();
-		for (int i = 0; i < Machine.processor().getNumPhysPages(); i++)
-			freePages.add(i);
+		pageAllocator = new PageAllocator(Machine.processor().getNumPhysPages());
+		minFreePages = pageAllocator.getNumFreePages();
+
+		syscallStats = new SyscallStats(Config.getBoolean(
+				"UserKernel.syscallLatency", false));
+
+		textPageCache = new TextPageCache(Machine.processor().getNumPhysPages());
+		pageSharers = new int[Machine.processor().getNumPhysPages()];
 
 		Machine.processor().setExceptionHandler(new Runnable() {
 			public void run() {
@@ -109,43 +112,279 @@ public class UserKernel extends ThreadedKernel {
 	}
 
 	/**
-	 * Terminate this kernel. Never returns.
+	 * Terminate this kernel. Prints the kernel's statistics before the machine
+	 * prints its own. Never returns.
 	 */
 	public void terminate() {
+		System.out.println("Physical pages: free " + getNumFreePages()
+				+ " (at least " + minFreePages + "), allocated "
+				+ numPagesAllocated + ", freed " + numPagesFreed);
+		System.out.println("Shared text pages: loaded " + numTextPagesLoaded
+				+ ", shared " + numTextPagesShared);
+		System.out.println("Copy-on-write: faults " + numCopyOnWriteFaults
+				+ ", copies " + numCopyOnWriteCopies);
+		syscallStats.print();
+
 		super.terminate();
 	}
 
+	/**
+	 * Allocate a single physical page.
+	 *
+	 * @return the physical page number of the page, or -1 if no pages are
+	 * free.
+	 */
+	public static int allocatePage() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int ppn = pageAllocator.allocate();
+		if (ppn != -1)
+			updatePageStats(1, 0);
+
+		Machine.interrupt().restore(intStatus);
+
+		return ppn;
+	}
+
+	/**
+	 * Allocate a number of physical pages, which need not be contiguous.
+	 *
+	 * @param num the number of pages to allocate.
+	 * @return the physical page numbers of the pages, or <tt>null</tt> if
+	 * there are not enough free pages.
+	 */
 	public static int[] allocatePages(int num) {
-		listLock.acquire();
+		int[] ppns = new int[num];
 
-		if (freePages.size() < num) {
-			listLock.release();
+		if (!allocatePages(ppns, 0, num))
 			return null;
-		}
 
-		int[] result = new int[num];
+		return ppns;
+	}
+
+	/**
+	 * Allocate a number of physical pages, which need not be contiguous, and
+	 * store their physical page numbers in the specified array. Either all of
+	 * the pages are allocated or none of them are.
+	 *
+	 * @param ppns the array in which to store the physical page numbers.
+	 * @param offset the first element of <tt>ppns</tt> to store into.
+	 * @param num the number of pages to allocate.
+	 * @return <tt>true</tt> if the pages were allocated.
+	 */
+	public static boolean allocatePages(int[] ppns, int offset, int num) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		boolean allocated = pageAllocator.allocate(ppns, offset, num);
+		if (allocated)
+			updatePageStats(num, 0);
+
+		Machine.interrupt().restore(intStatus);
+
+		return allocated;
+	}
+
+	/**
+	 * Allocate a run of physically contiguous pages.
+	 *
+	 * @param num the number of pages to allocate.
+	 * @return the physical page number of the first page of the run, or -1 if
+	 * there is no run of that many free pages.
+	 */
+	public static int allocateContiguousPages(int num) {
+		boolean intStatus = Machine.interrupt().disable();
 
-		for (int i = 0; i < num; i++)
-			result[i] = freePages.remove();
+		int firstPPN = pageAllocator.allocateContiguous(num);
+		if (firstPPN != -1)
+			updatePageStats(num, 0);
 
-		listLock.release();
+		Machine.interrupt().restore(intStatus);
 
-		return result;
+		return firstPPN;
 	}
 
+	/**
+	 * Free a physical page.
+	 *
+	 * @param ppn the physical page number of the page.
+	 */
 	public static void releasePage(int ppn) {
-		listLock.acquire();
-		freePages.add(ppn);
-		listLock.release();
+		boolean intStatus = Machine.interrupt().disable();
+
+		pageAllocator.free(ppn);
+		updatePageStats(0, 1);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Free a number of physical pages.
+	 *
+	 * @param ppns the physical page numbers of the pages.
+	 * @param offset the first element of <tt>ppns</tt> to free.
+	 * @param num the number of pages to free.
+	 */
+	public static void releasePages(int[] ppns, int offset, int num) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		pageAllocator.free(ppns, offset, num);
+		updatePageStats(0, num);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Free a run of physically contiguous pages allocated by
+	 * <tt>allocateContiguousPages()</tt>.
+	 *
+	 * @param firstPPN the physical page number of the first page of the run.
+	 * @param num the number of pages in the run.
+	 */
+	public static void releaseContiguousPages(int firstPPN, int num) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		pageAllocator.freeContiguous(firstPPN, num);
+		updatePageStats(0, num);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Add a process to those sharing a physical page copy-on-write. A page
+	 * that is not yet shared counts as having one sharer, its allocator.
+	 *
+	 * @param ppn the physical page number of the page.
+	 */
+	public static void sharePage(int ppn) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		pageSharers[ppn] = Math.max(pageSharers[ppn], 1) + 1;
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Return the number of processes sharing a physical page copy-on-write.
+	 *
+	 * @param ppn the physical page number of the page.
+	 * @return the number of processes sharing the page, or 0 if it is not
+	 * shared.
+	 */
+	public static int getPageSharers(int ppn) {
+		return pageSharers[ppn];
+	}
+
+	/**
+	 * Remove a process from those sharing a physical page copy-on-write, and
+	 * free the page if it was the last.
+	 *
+	 * @param ppn the physical page number of the page.
+	 * @return the number of processes still sharing the page.
+	 */
+	public static int unsharePage(int ppn) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Lib.assertTrue(pageSharers[ppn] > 0);
+
+		int sharers = --pageSharers[ppn];
+		if (sharers == 0) {
+			pageAllocator.free(ppn);
+			updatePageStats(0, 1);
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		return sharers;
+	}
+
+	/**
+	 * Make a physical page shared copy-on-write private to the one process
+	 * still sharing it, if there is only one.
+	 *
+	 * @param ppn the physical page number of the page.
+	 * @return <tt>true</tt> if the page is now private.
+	 */
+	public static boolean claimSharedPage(int ppn) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		boolean claimed = pageSharers[ppn] == 1;
+		if (claimed)
+			pageSharers[ppn] = 0;
+
+		Machine.interrupt().restore(intStatus);
+
+		return claimed;
+	}
+
+	/**
+	 * Return the number of free physical pages.
+	 *
+	 * @return the number of free physical pages.
+	 */
+	public static int getNumFreePages() {
+		return pageAllocator.getNumFreePages();
+	}
+
+	private static void updatePageStats(int numAllocated, int numFreed) {
+		numPagesAllocated += numAllocated;
+		numPagesFreed += numFreed;
+		minFreePages = Math.min(minFreePages, pageAllocator.getNumFreePages());
 	}
 
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
+	/**
+	 * Globally accessible reference to the cache of read-only executable
+	 * pages.
+	 */
+	public static TextPageCache textPageCache;
+
+	/** Globally accessible reference to the syscall statistics. */
+	public static SyscallStats syscallStats;
+
+	/**
+	 * The total number of read-only executable pages the kernel has read into
+	 * its shared text page cache.
+	 */
+	public static int numTextPagesLoaded = 0;
+
+	/**
+	 * The total number of times the kernel has mapped a read-only executable
+	 * page that was already in its shared text page cache.
+	 */
+	public static int numTextPagesShared = 0;
+
+	/**
+	 * The total number of writes to pages shared copy-on-write that the
+	 * kernel has handled.
+	 */
+	public static int numCopyOnWriteFaults = 0;
+
+	/**
+	 * The total number of pages the kernel has copied because they were
+	 * written while shared copy-on-write.
+	 */
+	public static int numCopyOnWriteCopies = 0;
+
 	/** Globally accessible reference to the root process. */
 	public static UserProcess rootProcess = null;
 
-	/** A global linked list of free physical pages. */
-	private static LinkedList<Integer> freePages;
-	private static Lock listLock;
+	/**
+	 * The number of processes sharing each physical page copy-on-write, or 0
+	 * for a page that is not shared.
+	 */
+	private static int[] pageSharers;
+
+	/** Keeps track of the free physical pages. */
+	private static PageAllocator pageAllocator;
+
+	/** The fewest physical pages the kernel has had free at once. */
+	private static int minFreePages = 0;
+
+	/** The total number of physical pages the kernel has allocated. */
+	private static long numPagesAllocated = 0;
+
+	/** The total number of physical pages the kernel has freed. */
+	private static long numPagesFreed = 0;
 }
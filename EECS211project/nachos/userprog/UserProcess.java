@@ -34,6 +34,62 @@ public class UserProcess {
 		descriptor = new Descriptor();
 		descriptor.add(0, UserKernel.console.openForReading());
 		descriptor.add(1, UserKernel.console.openForWriting());
+
+		registerSyscall(syscallHalt, new SyscallHandler("halt") {
+			public int handle(int a0, int a1, int a2, int a3) {
+				return handleHalt();
+			}
+		});
+		registerSyscall(syscallExit, new SyscallHandler("exit") {
+			public int handle(int a0, int a1, int a2, int a3) {
+				return handleExit(a0);
+			}
+		});
+		registerSyscall(syscallExec, new SyscallHandler("exec") {
+			public int handle(int a0, int a1, int a2, int a3) {
+				return handleExec(a0, a1, a2);
+			}
+		});
+		registerSyscall(syscallJoin, new SyscallHandler("join") {
+			public int handle(int a0, int a1, int a2, int a3) {
+				return handleJoin(a0, a1);
+			}
+		});
+		registerSyscall(syscallCreate, new SyscallHandler("creat") {
+			public int handle(int a0, int a1, int a2, int a3) {
+				return handleCreate(a0);
+			}
+		});
+		registerSyscall(syscallOpen, new SyscallHandler("open") {
+			public int handle(int a0, int a1, int a2, int a3) {
+				return handleOpen(a0);
+			}
+		});
+		registerSyscall(syscallRead, new SyscallHandler("read") {
+			public int handle(int a0, int a1, int a2, int a3) {
+				return handleRead(a0, a1, a2);
+			}
+		});
+		registerSyscall(syscallWrite, new SyscallHandler("write") {
+			public int handle(int a0, int a1, int a2, int a3) {
+				return handleWrite(a0, a1, a2);
+			}
+		});
+		registerSyscall(syscallClose, new SyscallHandler("close") {
+			public int handle(int a0, int a1, int a2, int a3) {
+				return handleClose(a0);
+			}
+		});
+		registerSyscall(syscallUnlink, new SyscallHandler("unlink") {
+			public int handle(int a0, int a1, int a2, int a3) {
+				return handleUnlink(a0);
+			}
+		});
+		registerSyscall(syscallFork, new SyscallHandler("fork") {
+			public int handle(int a0, int a1, int a2, int a3) {
+				return handleFork();
+			}
+		});
 	}
 
 	/**
@@ -99,13 +155,29 @@ public class UserProcess {
 	public String readVirtualMemoryString(int vaddr, int maxLength) {
 		Lib.assertTrue(maxLength >= 0);
 
-		byte[] bytes = new byte[maxLength + 1];
+		// search for the null terminator in place, and only copy the string
+		byte[] bytes = null;
+		int amount = 0;
 
-		int bytesRead = readVirtualMemory(vaddr, bytes);
+		while (amount <= maxLength) {
+			int mapped = translateVirtualMemory(vaddr + amount, maxLength + 1
+					- amount, false, extents);
+			if (mapped == 0)
+				return null;
 
-		for (int length = 0; length < bytesRead; length++) {
-			if (bytes[length] == 0)
-				return new String(bytes, 0, length);
+			int length = extents.indexOf((byte) 0);
+			if (length != -1 && bytes == null)
+				return extents.getString(length);
+
+			// the string goes on past what could be translated at once
+			if (bytes == null)
+				bytes = new byte[maxLength + 1];
+
+			extents.read(length == -1 ? mapped : length, bytes, amount);
+			if (length != -1)
+				return new String(bytes, 0, amount + length);
+
+			amount += mapped;
 		}
 
 		return null;
@@ -147,31 +219,15 @@ public class UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();
-
-		int firstVPN = Processor.pageFromAddress(vaddr);
-		int firstOffset = Processor.offsetFromAddress(vaddr);
-		int lastVPN = Processor.pageFromAddress(vaddr + length);
-
-		TranslationEntry entry = getTranslationEntry(firstVPN, false);
-
-		if (entry == null)
-			return 0;
-
-		int amount = Math.min(length, pageSize - firstOffset);
-		System.arraycopy(memory, Processor.makeAddress(entry.ppn, firstOffset),
-				data, offset, amount);
-		offset += amount;
+		int amount = 0;
+		while (amount < length) {
+			int mapped = translateVirtualMemory(vaddr + amount, length - amount,
+					false, extents);
+			if (mapped == 0)
+				break;
 
-		for (int i = firstVPN + 1; i <= lastVPN; i++) {
-			entry = getTranslationEntry(i, false);
-			if (entry == null)
-				return amount;
-			int len = Math.min(length - amount, pageSize);
-			System.arraycopy(memory, Processor.makeAddress(entry.ppn, 0), data,
-					offset, len);
-			offset += len;
-			amount += len;
+			extents.read(mapped, data, offset + amount);
+			amount += mapped;
 		}
 
 		return amount;
@@ -213,30 +269,58 @@ public class UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();
+		int amount = 0;
+		while (amount < length) {
+			int mapped = translateVirtualMemory(vaddr + amount, length - amount,
+					true, extents);
+			if (mapped == 0)
+				break;
 
-		int firstVPN = Processor.pageFromAddress(vaddr);
-		int firstOffset = Processor.offsetFromAddress(vaddr);
-		int lastVPN = Processor.pageFromAddress(vaddr + length);
+			extents.write(data, offset + amount, mapped);
+			amount += mapped;
+		}
 
-		TranslationEntry entry = getTranslationEntry(firstVPN, true);
+		return amount;
+	}
 
-		if (entry == null)
-			return 0;
+	/**
+	 * Resolve a range of this process's virtual memory into the runs of
+	 * physical memory that hold it, marking the pages used (and dirty, if
+	 * <i>isWrite</i> is set). The translation stops at the first page that
+	 * cannot be accessed, and may also stop early if not all of the range can
+	 * be in physical memory at once; callers that need the rest translate
+	 * again from where it stopped. The runs are only good until the kernel
+	 * next blocks.
+	 * 
+	 * @param vaddr
+	 *            the first byte of virtual memory to translate.
+	 * @param length
+	 *            the number of bytes to translate.
+	 * @param isWrite
+	 *            <tt>true</tt> if the range is about to be written.
+	 * @param extents
+	 *            the list to fill in with the physical runs.
+	 * @return the number of bytes from the start of the range that were
+	 *         translated.
+	 */
+	public int translateVirtualMemory(int vaddr, int length, boolean isWrite,
+			PhysicalExtents extents) {
+		Lib.assertTrue(length >= 0);
+
+		extents.clear();
 
-		int amount = Math.min(length, pageSize - firstOffset);
-		System.arraycopy(data, offset, memory, Processor.makeAddress(entry.ppn,
-				firstOffset), amount);
-		offset += amount;
+		int amount = 0;
+		while (amount < length) {
+			int address = vaddr + amount;
+			int offset = Processor.offsetFromAddress(address);
 
-		for (int i = firstVPN + 1; i <= lastVPN; i++) {
-			entry = getTranslationEntry(i, true);
+			TranslationEntry entry = getTranslationEntry(Processor
+					.pageFromAddress(address), isWrite);
 			if (entry == null)
-				return amount;
-			int len = Math.min(length - amount, pageSize);
-			System.arraycopy(data, offset, memory, Processor.makeAddress(
-					entry.ppn, 0), len);
-			offset += len;
+				break;
+
+			int len = Math.min(length - amount, pageSize - offset);
+			extents.add(Processor.makeAddress(entry.ppn, offset), len);
 			amount += len;
 		}
 
@@ -247,9 +331,12 @@ public class UserProcess {
 		if (vpn < 0 || vpn >= numPages)
 			return null;
 		TranslationEntry result = pageTable[vpn];
-		if (result == null)
+		if (result == null || !result.valid)
 			return null;
-		if (result.readOnly && isWrite)
+		if (result.readOnly && isWrite
+				&& !(isCopyOnWrite(vpn) && breakCopyOnWrite(vpn)))
+			return null;
+		if (!result.valid)
 			return null;
 		result.used = true;
 		if (isWrite)
@@ -278,6 +365,8 @@ public class UserProcess {
 			return false;
 		}
 
+		coffName = name;
+
 		try {
 			coff = new Coff(executable);
 		} catch (EOFException e) {
@@ -355,11 +444,30 @@ public class UserProcess {
 	 * memory. If this returns successfully, the process will definitely be run
 	 * (this is the last step in process initialization that can fail).
 	 * 
+	 * <p>
+	 * Pages of read-only sections are mapped from the kernel's
+	 * <tt>TextPageCache</tt>, so they are shared with every other process
+	 * running the same executable, and only read from the file the first
+	 * time.
+	 * 
 	 * @return <tt>true</tt> if the sections were successfully loaded.
 	 */
 	protected boolean loadSections() {
-		// physical page numbers allocated
-		int[] ppns = UserKernel.allocatePages(numPages);
+		int numShared = 0;
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			if (coff.getSection(s).isReadOnly())
+				numShared += coff.getSection(s).getLength();
+		}
+
+		// physical page numbers allocated for the private pages, freeing
+		// cached text pages nobody is using if there are not enough
+		int numPrivate = numPages - numShared;
+		int[] ppns = UserKernel.allocatePages(numPrivate);
+		if (ppns == null) {
+			UserKernel.textPageCache.reclaim(numPrivate
+					- UserKernel.getNumFreePages());
+			ppns = UserKernel.allocatePages(numPrivate);
+		}
 
 		if (ppns == null) {
 			coff.close();
@@ -368,6 +476,8 @@ public class UserProcess {
 		}
 
 		pageTable = new TranslationEntry[numPages];
+		int[] shared = new int[numShared];
+		int numAllocated = 0, numMapped = 0;
 
 		// load sections
 		// the sections are contiguous and start at page 0
@@ -377,19 +487,37 @@ public class UserProcess {
 			Lib.debug(dbgProcess, "\tinitializing " + section.getName()
 					+ " section (" + section.getLength() + " pages)");
 
+			if (section.isReadOnly()
+					&& !UserKernel.textPageCache.acquire(coffName, coff, s,
+							shared, numMapped)) {
+				Lib.debug(dbgProcess, "\tinsufficient physical memory");
+				UserKernel.textPageCache.release(shared, 0, numMapped);
+				UserKernel.releasePages(ppns, 0, numPrivate);
+				coff.close();
+				return false;
+			}
+
 			for (int i = 0; i < section.getLength(); i++) {
 				int vpn = section.getFirstVPN() + i;
-				int ppn = ppns[vpn];
+				int ppn;
+
+				if (section.isReadOnly()) {
+					ppn = shared[numMapped++];
+				}
+				else {
+					ppn = ppns[numAllocated++];
+					section.loadPage(i, ppn);
+				}
+
 				pageTable[vpn] = new TranslationEntry(vpn, ppn, true, section
 						.isReadOnly(), false, false);
-				section.loadPage(i, ppn);
 			}
 		}
 
 		// allocate free pages for stack and argv
 		for (int i = numPages - stackPages - 1; i < numPages; i++) {
-			pageTable[i] = new TranslationEntry(i, ppns[i], true, false, false,
-					false);
+			pageTable[i] = new TranslationEntry(i, ppns[numAllocated++], true,
+					false, false, false);
 		}
 
 		return true;
@@ -399,10 +527,23 @@ public class UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		coff.close();
-		
-		for (int i = 0; i < numPages; i++)
-			UserKernel.releasePage(pageTable[i].ppn);
+		// a forked process has no executable open
+		if (coff != null)
+			coff.close();
+
+		int[] ppns = new int[numPages], shared = new int[numPages];
+		int numPrivate = 0, numShared = 0;
+		for (int i = 0; i < numPages; i++) {
+			if (isCopyOnWrite(i))
+				UserKernel.unsharePage(pageTable[i].ppn);
+			else if (pageTable[i].readOnly)
+				shared[numShared++] = pageTable[i].ppn;
+			else
+				ppns[numPrivate++] = pageTable[i].ppn;
+		}
+
+		UserKernel.textPageCache.release(shared, 0, numShared);
+		UserKernel.releasePages(ppns, 0, numPrivate);
 		pageTable = null;
 	}
 
@@ -416,6 +557,15 @@ public class UserProcess {
 	public void initRegisters() {
 		Processor processor = Machine.processor();
 
+		// a forked process starts with a copy of its parent's registers
+		if (forkRegisters != null) {
+			for (int i = 0; i < Processor.numUserRegisters; i++)
+				processor.writeRegister(i, forkRegisters[i]);
+
+			forkRegisters = null;
+			return;
+		}
+
 		// by default, everything's 0
 		for (int i = 0; i < Processor.numUserRegisters; i++)
 			processor.writeRegister(i, 0);
@@ -432,7 +582,64 @@ public class UserProcess {
 	protected static final int syscallHalt = 0, syscallExit = 1,
 			syscallExec = 2, syscallJoin = 3, syscallCreate = 4,
 			syscallOpen = 5, syscallRead = 6, syscallWrite = 7,
-			syscallClose = 8, syscallUnlink = 9;
+			syscallClose = 8, syscallUnlink = 9, syscallFork = 13;
+
+	/**
+	 * The code that carries out one syscall. Subclasses add syscalls by
+	 * registering handlers with <tt>registerSyscall()</tt> in their
+	 * constructors, rather than by overriding <tt>handleSyscall()</tt>.
+	 */
+	protected abstract class SyscallHandler {
+		/**
+		 * Allocate a new syscall handler.
+		 * 
+		 * @param name
+		 *            the name of the syscall, as reported in the statistics.
+		 */
+		public SyscallHandler(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Carry out the syscall.
+		 * 
+		 * @param a0
+		 *            the first syscall argument.
+		 * @param a1
+		 *            the second syscall argument.
+		 * @param a2
+		 *            the third syscall argument.
+		 * @param a3
+		 *            the fourth syscall argument.
+		 * @return the value to be returned to the user.
+		 */
+		public abstract int handle(int a0, int a1, int a2, int a3);
+
+		/** The name of the syscall. */
+		public final String name;
+	}
+
+	/**
+	 * Register the handler for a syscall, replacing any handler already
+	 * registered for it.
+	 * 
+	 * @param syscall
+	 *            the syscall number.
+	 * @param handler
+	 *            the handler to call when the user executes the syscall.
+	 */
+	protected void registerSyscall(int syscall, SyscallHandler handler) {
+		Lib.assertTrue(syscall >= 0 && handler != null);
+
+		if (syscall >= syscallHandlers.length) {
+			SyscallHandler[] grown = new SyscallHandler[syscall + 1];
+			System.arraycopy(syscallHandlers, 0, grown, 0,
+					syscallHandlers.length);
+			syscallHandlers = grown;
+		}
+
+		syscallHandlers[syscall] = handler;
+	}
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -486,8 +693,17 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  fork();</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
+	 * <p>
+	 * The syscall is carried out by the handler registered for it with
+	 * <tt>registerSyscall()</tt>. Every call is counted in the kernel's
+	 * statistics, along with how long it took to return.
+	 * 
 	 * @param syscall
 	 *            the syscall number.
 	 * @param a0
@@ -501,36 +717,31 @@ public class UserProcess {
 	 * @return the value to be returned to the user.
 	 */
 	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
-		switch (syscall) {
-		case syscallHalt:
-			return handleHalt();
-		case syscallExit:
-			return handleExit(a0);
-		case syscallExec:
-			return handleExec(a0, a1, a2);
-		case syscallJoin:
-			return handleJoin(a0, a1);
-		case syscallCreate:
-			return handleCreate(a0);
-		case syscallOpen:
-			return handleOpen(a0);
-		case syscallRead:
-			return handleRead(a0, a1, a2);
-		case syscallWrite:
-			return handleWrite(a0, a1, a2);
-		case syscallClose:
-			return handleClose(a0);
-		case syscallUnlink:
-			return handleUnlink(a0);
+		SyscallHandler handler = null;
+		if (syscall >= 0 && syscall < syscallHandlers.length)
+			handler = syscallHandlers[syscall];
 
-		default:
+		if (handler == null) {
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
 			normalRunOff = false;
 			handleExit(-1);
 			return -1; 
-
 		}
 
+		// count the call now, since exit() never returns
+		UserKernel.syscallStats.syscallCalled(syscall, handler.name);
+
+		boolean timed = UserKernel.syscallStats.recordsLatency();
+		long startTicks = Machine.timer().getTime();
+		long startNanos = timed ? System.nanoTime() : 0;
+
+		int result = handler.handle(a0, a1, a2, a3);
+
+		UserKernel.syscallStats.syscallReturned(syscall,
+				Machine.timer().getTime() - startTicks,
+				timed ? System.nanoTime() - startNanos : 0);
+
+		return result;
 	}
 
 	protected int handleUnlink(int name) {
@@ -541,6 +752,8 @@ public class UserProcess {
 			return -1;
 		}
 
+		UserKernel.textPageCache.invalidate(fileName);
+
 		if (files.containsKey(fileName)) {
 			deleted.add(fileName);
 		}
@@ -569,13 +782,31 @@ public class UserProcess {
 			return -1;
 		}
 
-		byte buf[] = new byte[count];
+		// an executable being written must be read again by the next exec
+		if (file.getFileSystem() != null)
+			UserKernel.textPageCache.invalidate(file.getName());
+
+		// copy in bounded chunks through ioBuffer, stopping early if part of
+		// the user buffer is not mapped or the file takes less than a chunk
+		int amount = 0;
+		while (amount < count) {
+			int chunk = Math.min(count - amount, maxIOChunk);
+			byte[] data = getIOBuffer(chunk);
 
-		int length = readVirtualMemory(buffer, buf, 0, count);
+			int length = readVirtualMemory(buffer + amount, data, 0, chunk);
+			if (length == 0)
+				break;
 
-		length = file.write(buf, 0, length);
+			int written = file.write(data, 0, length);
+			if (written == -1)
+				return amount == 0 ? -1 : amount;
 
-		return length;
+			amount += written;
+			if (written < chunk)
+				break;
+		}
+
+		return amount;
 	}
 
 	protected int handleRead(int fileDescriptor, int buffer, int count) {
@@ -591,18 +822,44 @@ public class UserProcess {
 			return -1;
 		}
 
-		byte buf[] = new byte[count];
+		// copy in bounded chunks through ioBuffer, stopping at the first short
+		// read, since the file (or the console) has no more data for now
+		int amount = 0;
+		while (amount < count) {
+			int chunk = Math.min(count - amount, maxIOChunk);
+			byte[] data = getIOBuffer(chunk);
 
-		int length = file.read(buf, 0, count);
+			int length = file.read(data, 0, chunk);
+			if (length == -1) {
+				if (amount > 0)
+					break;
 
-		if (length == -1) {
-			Lib.debug(dbgProcess, "Failed to read file");
-			return -1;
+				Lib.debug(dbgProcess, "Failed to read file");
+				return -1;
+			}
+
+			int copied = writeVirtualMemory(buffer + amount, data, 0, length);
+
+			amount += copied;
+			if (copied < chunk)
+				break;
 		}
 
-		length = writeVirtualMemory(buffer, buf, 0, length);
+		return amount;
+	}
 
-		return length;
+	/**
+	 * Return this process's I/O buffer, growing it if it is smaller than the
+	 * specified size.
+	 * 
+	 * @param size the number of bytes needed, at most <tt>maxIOChunk</tt>.
+	 * @return the I/O buffer.
+	 */
+	private byte[] getIOBuffer(int size) {
+		if (ioBuffer == null || ioBuffer.length < size)
+			ioBuffer = new byte[size];
+
+		return ioBuffer;
 	}
 
 	protected int handleOpen(int name) {
@@ -648,6 +905,9 @@ public class UserProcess {
 			return -1;
 		}
 
+		// creating a file empties it, so the next exec of it must read it
+		UserKernel.textPageCache.invalidate(fileName);
+
 		return descriptor.add(file);
 	}
 
@@ -690,18 +950,21 @@ public class UserProcess {
 			return -1;
 		}
 
-		if (argc < 0) {
+		// the argv array has to fit in one page (see load())
+		if (argc < 0 || argc > pageSize / 4) {
 			Lib.debug(dbgProcess, "Invalid arguments");
 			return -1;
 		}
 
+		// read the whole argv array at once, then each string in place
 		String[] args = new String[argc];
-		byte[] buffer = new byte[4];
+		byte[] pointers = new byte[argc * 4];
+
+		if (readVirtualMemory(argv, pointers) != pointers.length)
+			return -1;
 
 		for (int i = 0; i < argc; i++) {
-			if (readVirtualMemory(argv + i * 4, buffer) != 4)
-				return -1;
-			args[i] = readVirtualMemoryString(Lib.bytesToInt(buffer, 0),
+			args[i] = readVirtualMemoryString(Lib.bytesToInt(pointers, i * 4),
 					maxFileNameLength);
 			if (args[i] == null)
 				return -1;
@@ -720,6 +983,182 @@ public class UserProcess {
 		return child.pid;
 	}
 
+	/**
+	 * Handle the fork() system call. Creates a child process running the same
+	 * program as this one, with a copy of this process's registers, open
+	 * files and address space. The address space is not copied: the child
+	 * shares this process's physical pages, which are made read-only in both
+	 * processes and copied only when one of them first writes to them (see
+	 * <tt>breakCopyOnWrite()</tt>).
+	 * 
+	 * @return the child's process ID to the parent, 0 to the child, or -1 if
+	 *         the child could not be created.
+	 */
+	protected int handleFork() {
+		UserProcess child = newUserProcess();
+
+		child.coffName = coffName;
+		child.numPages = numPages;
+		child.initialPC = initialPC;
+		child.initialSP = initialSP;
+		child.argc = argc;
+		child.argv = argv;
+
+		if (!child.cloneAddressSpace(this)) {
+			Lib.debug(dbgProcess, "Failed to clone address space");
+			processPool.remove(child.pid);
+			return -1;
+		}
+
+		// the child gets its own handle on each open file, at the same
+		// position, besides the console handles it opened itself
+		for (int i = 2; i < maxFileDescriptorNum; i++) {
+			OpenFile file = descriptor.get(i);
+			if (file == null || file.getFileSystem() == null)
+				continue;
+
+			OpenFile copy = UserKernel.fileSystem.open(file.getName(), false);
+			if (copy == null) {
+				Lib.debug(dbgProcess, "Failed to reopen " + file.getName());
+
+				for (int j = 2; j < i; j++) {
+					if (child.descriptor.get(j) != null)
+						child.descriptor.close(j);
+				}
+				child.unloadSections();
+				processPool.remove(child.pid);
+				return -1;
+			}
+
+			copy.seek(file.tell());
+			child.descriptor.add(i, copy);
+		}
+
+		// the child returns 0 from the syscall, to the next instruction
+		Processor processor = Machine.processor();
+		int[] registers = new int[Processor.numUserRegisters];
+		for (int i = 0; i < Processor.numUserRegisters; i++)
+			registers[i] = processor.readRegister(i);
+
+		registers[Processor.regV0] = 0;
+		registers[Processor.regPC] = registers[Processor.regNextPC];
+		registers[Processor.regNextPC] += 4;
+		child.forkRegisters = registers;
+
+		childProcesses.add(child.pid);
+
+		saveState();
+
+		new UThread(child).setName(coffName).fork();
+
+		return child.pid;
+	}
+
+	/**
+	 * Give this newly created process the same address space as the specified
+	 * process. Every page that can be written is shared copy-on-write by both
+	 * processes, and pages of read-only sections are shared through the text
+	 * page cache.
+	 * 
+	 * @param parent
+	 *            the process being forked.
+	 * @return <tt>true</tt> if successful.
+	 */
+	protected boolean cloneAddressSpace(UserProcess parent) {
+		pageTable = new TranslationEntry[numPages];
+		copyOnWrite = new boolean[numPages];
+
+		if (parent.copyOnWrite == null)
+			parent.copyOnWrite = new boolean[numPages];
+
+		int[] text = new int[numPages];
+		int numText = 0;
+
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			TranslationEntry entry = parent.pageTable[vpn];
+
+			if (entry.readOnly && !parent.copyOnWrite[vpn]) {
+				text[numText++] = entry.ppn;
+			}
+			else {
+				UserKernel.sharePage(entry.ppn);
+				entry.readOnly = true;
+				parent.copyOnWrite[vpn] = true;
+				copyOnWrite[vpn] = true;
+			}
+
+			pageTable[vpn] = new TranslationEntry(vpn, entry.ppn, true, true,
+					false, false);
+		}
+
+		UserKernel.textPageCache.share(text, 0, numText);
+
+		return true;
+	}
+
+	/**
+	 * Return whether the specified virtual page is shared copy-on-write.
+	 * 
+	 * @param vpn
+	 *            the virtual page number.
+	 * @return <tt>true</tt> if the page is shared copy-on-write.
+	 */
+	protected boolean isCopyOnWrite(int vpn) {
+		return copyOnWrite != null && vpn >= 0 && vpn < copyOnWrite.length
+				&& copyOnWrite[vpn];
+	}
+
+	/**
+	 * Give this process its own writable copy of a page shared copy-on-write.
+	 * If every other process sharing the page has already copied it or
+	 * exited, the page is simply made writable again.
+	 * 
+	 * @param vpn
+	 *            the virtual page number.
+	 * @return <tt>false</tt> if there was no physical page for the copy.
+	 */
+	protected boolean breakCopyOnWrite(int vpn) {
+		TranslationEntry entry = pageTable[vpn];
+
+		if (!UserKernel.claimSharedPage(entry.ppn)) {
+			int ppn = UserKernel.allocatePage();
+			if (ppn == -1 && UserKernel.textPageCache.reclaim(1) == 1)
+				ppn = UserKernel.allocatePage();
+			if (ppn == -1)
+				return false;
+
+			copyPage(entry.ppn, ppn);
+			UserKernel.unsharePage(entry.ppn);
+			entry.ppn = ppn;
+		}
+
+		entry.readOnly = false;
+		copyOnWrite[vpn] = false;
+
+		UserKernel.numCopyOnWriteFaults++;
+
+		return true;
+	}
+
+	/**
+	 * Copy the contents of one physical page to another.
+	 * 
+	 * @param fromPPN
+	 *            the page to copy.
+	 * @param toPPN
+	 *            the page to copy into.
+	 */
+	protected static void copyPage(int fromPPN, int toPPN) {
+		Processor processor = Machine.processor();
+		byte[] memory = processor.getMemory();
+
+		System.arraycopy(memory, fromPPN * pageSize, memory, toPPN * pageSize,
+				pageSize);
+		processor.invalidatePage(toPPN);
+
+		UserKernel.numCopyOnWriteCopies++;
+	}
+
 	protected int handleExit(int status) {
 		this.status = status;
 		
@@ -776,6 +1215,17 @@ public class UserProcess {
 			processor.advancePC();
 			break;
 
+		case Processor.exceptionReadOnly:
+			int vpn = Processor.pageFromAddress(processor
+					.readRegister(Processor.regBadVAddr));
+			if (isCopyOnWrite(vpn) && breakCopyOnWrite(vpn))
+				break;
+
+			Lib.debug(dbgProcess, "Write to read-only page " + vpn);
+			normalRunOff = false;
+			handleExit(-1);
+			return;
+
 		default:
 			Lib.debug(dbgProcess, "Unexpected exception: "
 					+ Processor.exceptionNames[cause]);
@@ -850,6 +1300,9 @@ public class UserProcess {
 	/** The program being run by this process. */
 	protected Coff coff;
 
+	/** The name of the file containing the program. */
+	protected String coffName;
+
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
 	/** The number of contiguous pages occupied by the program. */
@@ -874,6 +1327,36 @@ public class UserProcess {
 	protected HashSet<Integer> childProcesses;
 
 	protected Descriptor descriptor;
+
+	/** The handler for each syscall, indexed by syscall number. */
+	private SyscallHandler[] syscallHandlers = new SyscallHandler[0];
+
+	/** Reused by every translation of this process's virtual memory. */
+	protected PhysicalExtents extents = new PhysicalExtents();
+
+	/**
+	 * Which virtual pages are shared copy-on-write with another process, or
+	 * <tt>null</tt> if this process has never forked or been forked.
+	 */
+	protected boolean[] copyOnWrite = null;
+
+	/**
+	 * The registers a forked process starts with, or <tt>null</tt> if it was
+	 * not forked.
+	 */
+	private int[] forkRegisters = null;
+
+	/**
+	 * The buffer <tt>read()</tt> and <tt>write()</tt> copy through, grown as
+	 * needed up to <tt>maxIOChunk</tt> bytes.
+	 */
+	private byte[] ioBuffer = null;
+
+	/**
+	 * The most bytes <tt>read()</tt> and <tt>write()</tt> transfer with one
+	 * file operation. Larger requests are split into chunks of this size.
+	 */
+	protected static final int maxIOChunk = 16 * Processor.pageSize;
 	
 	protected boolean normalRunOff = true;
 
@@ -0,0 +1,144 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A page table for all of physical memory, with one entry per physical page
+ * recording which process's virtual page is in it. Entries are found by
+ * process ID and virtual page number through a hash table, whose chains are
+ * threaded through the physical pages themselves, so a lookup takes the same
+ * time however many processes there are and however much memory is attached.
+ *
+ * <p>
+ * The translation entry stored for a physical page is the owning process's
+ * own page table entry, so the used and dirty bits are shared with it.
+ */
+public class InvertedPageTable {
+	/**
+	 * Allocate a new inverted page table, with every physical page empty.
+	 *
+	 * @param numPhysPages the number of pages of physical memory.
+	 */
+	public InvertedPageTable(int numPhysPages) {
+		this.numPhysPages = numPhysPages;
+
+		pids = new int[numPhysPages];
+		entries = new TranslationEntry[numPhysPages];
+		next = new int[numPhysPages];
+
+		// at least twice as many buckets as pages, to keep chains short
+		int numBuckets = 1;
+		while (numBuckets < 2 * numPhysPages)
+			numBuckets *= 2;
+
+		buckets = new int[numBuckets];
+		for (int i = 0; i < numBuckets; i++)
+			buckets[i] = -1;
+	}
+
+	/**
+	 * Return the translation for the specified virtual page of the specified
+	 * process, if the page is in physical memory.
+	 *
+	 * @param pid the process ID.
+	 * @param vpn the virtual page number.
+	 * @return the translation entry, or <tt>null</tt> if the page is not in
+	 * physical memory.
+	 */
+	public TranslationEntry lookup(int pid, int vpn) {
+		for (int ppn = buckets[hash(pid, vpn)]; ppn != -1; ppn = next[ppn]) {
+			if (pids[ppn] == pid && entries[ppn].vpn == vpn)
+				return entries[ppn];
+		}
+
+		return null;
+	}
+
+	/**
+	 * Record that a virtual page of the specified process is in the physical
+	 * page given by the entry. The physical page must be empty.
+	 *
+	 * @param pid the process ID.
+	 * @param entry the process's valid page table entry for the page.
+	 */
+	public void insert(int pid, TranslationEntry entry) {
+		int ppn = entry.ppn;
+
+		Lib.assertTrue(entry.valid && ppn >= 0 && ppn < numPhysPages);
+		Lib.assertTrue(entries[ppn] == null, "physical page already mapped");
+
+		int bucket = hash(pid, entry.vpn);
+
+		pids[ppn] = pid;
+		entries[ppn] = entry;
+		next[ppn] = buckets[bucket];
+		buckets[bucket] = ppn;
+	}
+
+	/**
+	 * Record that the specified physical page is empty.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public void remove(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPhysPages && entries[ppn] != null,
+				"physical page not mapped");
+
+		int bucket = hash(pids[ppn], entries[ppn].vpn);
+
+		if (buckets[bucket] == ppn) {
+			buckets[bucket] = next[ppn];
+		}
+		else {
+			int i = buckets[bucket];
+			while (next[i] != ppn)
+				i = next[i];
+
+			next[i] = next[ppn];
+		}
+
+		entries[ppn] = null;
+	}
+
+	/**
+	 * Return the ID of the process whose page is in the specified physical
+	 * page.
+	 *
+	 * @param ppn the physical page number.
+	 * @return the process ID, or -1 if the page is empty.
+	 */
+	public int getPID(int ppn) {
+		return entries[ppn] == null ? -1 : pids[ppn];
+	}
+
+	/**
+	 * Return the translation entry for the virtual page in the specified
+	 * physical page.
+	 *
+	 * @param ppn the physical page number.
+	 * @return the translation entry, or <tt>null</tt> if the page is empty.
+	 */
+	public TranslationEntry getEntry(int ppn) {
+		return entries[ppn];
+	}
+
+	private int hash(int pid, int vpn) {
+		int h = pid * 0x9E3779B9 + vpn;
+		h ^= h >>> 16;
+		return h & (buckets.length - 1);
+	}
+
+	private int numPhysPages;
+
+	/** The process ID of the owner of each physical page. */
+	private int[] pids;
+
+	/** The translation entry for each physical page, or <tt>null</tt>. */
+	private TranslationEntry[] entries;
+
+	/** The next physical page in the same hash chain, or -1. */
+	private int[] next;
+
+	/** The first physical page in each hash chain, or -1. */
+	private int[] buckets;
+}
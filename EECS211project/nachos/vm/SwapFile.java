@@ -0,0 +1,150 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A file that holds the contents of virtual pages that have been paged out of
+ * physical memory. The file is divided into page-sized slots; a slot is
+ * allocated the first time a page is written out, and the file grows as more
+ * slots are needed. Freed slots are reused before the file is grown.
+ *
+ * <p>
+ * A swap file does no synchronization of its own; <tt>VMKernel</tt> only uses
+ * it while holding the paging lock.
+ */
+public class SwapFile {
+	/**
+	 * Create a new, empty swap file in the kernel's file system.
+	 *
+	 * @param name the name of the file.
+	 */
+	public SwapFile(String name) {
+		this.name = name;
+
+		file = ThreadedKernel.fileSystem.open(name, true);
+		Lib.assertTrue(file != null, "could not open swap file " + name);
+	}
+
+	/**
+	 * Write the contents of a physical page to a slot.
+	 *
+	 * @param slot the slot to write, or -1 to allocate a new one.
+	 * @param ppn the physical page to write out.
+	 * @return the slot written.
+	 */
+	public int write(int slot, int ppn) {
+		// a slot shared with another process must not be overwritten
+		if (slot != -1 && references[slot] > 1) {
+			references[slot]--;
+			slot = -1;
+		}
+
+		if (slot == -1)
+			slot = allocateSlot();
+
+		int written = file.write(slot * pageSize, Machine.processor()
+				.getMemory(), ppn * pageSize, pageSize);
+		Lib.assertTrue(written == pageSize, "swap file write failed");
+
+		VMKernel.numSwapOuts++;
+
+		return slot;
+	}
+
+	/**
+	 * Read the contents of a slot into a physical page.
+	 *
+	 * @param slot the slot to read.
+	 * @param ppn the physical page to read into.
+	 */
+	public void read(int slot, int ppn) {
+		Lib.assertTrue(slot >= 0 && slot < numSlots);
+
+		int read = file.read(slot * pageSize, Machine.processor().getMemory(),
+				ppn * pageSize, pageSize);
+		Lib.assertTrue(read == pageSize, "swap file read failed");
+
+		Machine.processor().invalidatePage(ppn);
+		VMKernel.numSwapIns++;
+	}
+
+	/**
+	 * Add a reference to a slot, for a process forked from the one that wrote
+	 * it. A slot with more than one reference is not overwritten; writing to
+	 * it allocates a new slot instead.
+	 *
+	 * @param slot the slot to share.
+	 */
+	public void share(int slot) {
+		Lib.assertTrue(slot >= 0 && slot < numSlots && references[slot] > 0);
+
+		references[slot]++;
+	}
+
+	/**
+	 * Remove a reference to a slot, and free the slot so that it can be reused
+	 * if that was the last.
+	 *
+	 * @param slot the slot to free.
+	 */
+	public void free(int slot) {
+		Lib.assertTrue(slot >= 0 && slot < numSlots && references[slot] > 0);
+
+		if (--references[slot] > 0)
+			return;
+
+		if (numFreeSlots == freeSlots.length) {
+			int[] grown = new int[Math.max(16, 2 * freeSlots.length)];
+			System.arraycopy(freeSlots, 0, grown, 0, numFreeSlots);
+			freeSlots = grown;
+		}
+
+		freeSlots[numFreeSlots++] = slot;
+	}
+
+	/**
+	 * Close the swap file and remove it from the file system.
+	 */
+	public void close() {
+		// remove before closing, since removing waits for the file system
+		ThreadedKernel.fileSystem.remove(name);
+		file.close();
+	}
+
+	private int allocateSlot() {
+		int slot;
+		if (numFreeSlots > 0) {
+			slot = freeSlots[--numFreeSlots];
+		}
+		else {
+			slot = numSlots++;
+
+			if (slot == references.length) {
+				int[] grown = new int[Math.max(16, 2 * references.length)];
+				System.arraycopy(references, 0, grown, 0, references.length);
+				references = grown;
+			}
+		}
+
+		references[slot] = 1;
+		return slot;
+	}
+
+	private String name;
+
+	private OpenFile file;
+
+	/** The number of slots the file has been grown to. */
+	private int numSlots = 0;
+
+	/** The number of processes referring to each slot. */
+	private int[] references = new int[0];
+
+	/** A stack of the slots that have been freed. */
+	private int[] freeSlots = new int[0];
+
+	private int numFreeSlots = 0;
+
+	private static final int pageSize = Processor.pageSize;
+}
@@ -1,5 +1,8 @@
 package nachos.vm;
 
+import java.util.Hashtable;
+import java.util.Vector;
+
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
@@ -17,10 +20,18 @@ public class VMKernel extends UserKernel {
 	}
 
 	/**
-	 * Initialize this kernel.
+	 * Initialize this kernel. Creates the inverted page table and the swap
+	 * file, which is named by <tt>VMKernel.swapFile</tt>.
 	 */
 	public void initialize(String[] args) {
 		super.initialize(args);
+
+		invertedPageTable = new InvertedPageTable(Machine.processor()
+				.getNumPhysPages());
+
+		pagingLock = new Lock();
+		swapFile = new SwapFile(Config.getString("VMKernel.swapFile",
+				"nachos.swp"));
 	}
 
 	/**
@@ -38,12 +49,104 @@ public class VMKernel extends UserKernel {
 	}
 
 	/**
-	 * Terminate this kernel. Never returns.
+	 * Terminate this kernel. Prints the demand paging statistics and closes
+	 * the swap file. Never returns.
 	 */
 	public void terminate() {
+		System.out.println("Demand paging: pages loaded " + numPageFaults);
+		System.out.println("Swap: swap-ins " + numSwapIns + ", swap-outs "
+				+ numSwapOuts);
+
+		if (swapFile != null)
+			swapFile.close();
+
 		super.terminate();
 	}
 
+	/**
+	 * Choose a physical page to reuse with the clock algorithm, and page out
+	 * the virtual page in it. The clock hand sweeps the physical pages,
+	 * clearing the used bit of each page it passes, and stops at the first
+	 * page whose used bit is already clear. The owning process writes the
+	 * page to swap only if it is dirty.
+	 *
+	 * <p>
+	 * The caller must hold the paging lock.
+	 *
+	 * @return the physical page number of the freed page, or -1 if no page
+	 * could be freed.
+	 */
+	public static int evictPage() {
+		Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+		// bring the used and dirty bits of the current process up to date
+		UserProcess current = currentProcess();
+		if (current instanceof VMProcess)
+			((VMProcess) current).syncTLB();
+
+		int numPhysPages = Machine.processor().getNumPhysPages();
+
+		// two sweeps clear every used bit, so a third always finds a page
+		for (int i = 0; i < 3 * numPhysPages; i++) {
+			int ppn = clockHand;
+			clockHand = (clockHand + 1) % numPhysPages;
+
+			TranslationEntry entry = invertedPageTable.getEntry(ppn);
+			if (entry == null)
+				continue;
+
+			if (entry.used) {
+				entry.used = false;
+				continue;
+			}
+
+			VMProcess owner = VMProcess.getProcess(invertedPageTable
+					.getPID(ppn));
+			Lib.assertTrue(owner != null);
+
+			owner.pageOut(entry);
+			return ppn;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Globally accessible reference to the inverted page table, which maps
+	 * each physical page to the process and virtual page in it.
+	 */
+	public static InvertedPageTable invertedPageTable;
+
+	/**
+	 * Held while a page is being brought into or paged out of physical
+	 * memory, so that only one page moves at a time.
+	 */
+	public static Lock pagingLock;
+
+	/** Globally accessible reference to the swap file. */
+	public static SwapFile swapFile;
+
+	/** The total number of pages loaded on demand after a TLB miss. */
+	public static int numPageFaults = 0;
+
+	/** The total number of pages the kernel has read from swap. */
+	public static int numSwapIns = 0;
+
+	/** The total number of pages the kernel has written to swap. */
+	public static int numSwapOuts = 0;
+
+	/**
+	 * The processes sharing each physical page that is shared copy-on-write,
+	 * by physical page number. The processes all map the page at the same
+	 * virtual page, and the inverted page table holds the entry of exactly
+	 * one of them, so that the page can still be chosen for eviction. Only
+	 * used with the paging lock held.
+	 */
+	static Hashtable<Integer, Vector<VMProcess>> sharedPages = new Hashtable<Integer, Vector<VMProcess>>();
+
+	/** The next physical page the clock algorithm will look at. */
+	private static int clockHand = 0;
+
 	// dummy variables to make javac smarter
 	private static VMProcess dummy1 = null;
 
@@ -1,5 +1,9 @@
 package nachos.vm;
 
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.Vector;
+
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
@@ -22,6 +26,11 @@ public class VMProcess extends UserProcess {
 	 */
 	public void saveState() {
 		super.saveState();
+
+		Processor processor = Machine.processor();
+
+		for (int i = 0; i < processor.getTLBSize(); i++)
+			syncTLBEntry(processor.readTLBEntry(i));
 	}
 
 	/**
@@ -29,24 +38,309 @@ public class VMProcess extends UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
-		super.restoreState();
+		Processor processor = Machine.processor();
+
+		// the TLB still holds the previous process's translations
+		for (int i = 0; i < processor.getTLBSize(); i++)
+			processor.writeTLBEntry(i, new TranslationEntry());
 	}
 
 	/**
 	 * Initializes page tables for this process so that the executable can be
-	 * demand-paged.
+	 * demand-paged. No physical memory is allocated and nothing is read from
+	 * the executable yet; every page starts out invalid, and is loaded from
+	 * its COFF section, or zero-filled if it is a stack or argument page, the
+	 * first time it is touched.
 	 * 
 	 * @return <tt>true</tt> if successful.
 	 */
 	protected boolean loadSections() {
-		return super.loadSections();
+		pageTable = new TranslationEntry[numPages];
+		pageSections = new CoffSection[numPages];
+		swapSlots = new int[numPages];
+		Arrays.fill(swapSlots, -1);
+
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+
+			Lib.debug(dbgProcess, "\tmapping " + section.getName()
+					+ " section (" + section.getLength() + " pages)");
+
+			for (int i = 0; i < section.getLength(); i++) {
+				int vpn = section.getFirstVPN() + i;
+				pageTable[vpn] = new TranslationEntry(vpn, -1, false, section
+						.isReadOnly(), false, false);
+				pageSections[vpn] = section;
+			}
+		}
+
+		// the stack and argv pages are zero-filled on first touch
+		for (int i = numPages - stackPages - 1; i < numPages; i++)
+			pageTable[i] = new TranslationEntry(i, -1, false, false, false,
+					false);
+
+		return true;
 	}
 
 	/**
-	 * Release any resources allocated by <tt>loadSections()</tt>.
+	 * Release any resources allocated by <tt>loadSections()</tt>, freeing only
+	 * the pages that were actually loaded, and any swap slots.
 	 */
 	protected void unloadSections() {
-		super.unloadSections();
+		coff.close();
+
+		int[] ppns = new int[numPages];
+		int numResident = 0;
+
+		// wait for any page of this process being paged out to finish
+		VMKernel.pagingLock.acquire();
+
+		for (int i = 0; i < numPages; i++) {
+			if (isCopyOnWrite(i)) {
+				if (leaveSharedPage(i))
+					ppns[numResident++] = pageTable[i].ppn;
+			}
+			else if (pageTable[i].valid) {
+				VMKernel.invertedPageTable.remove(pageTable[i].ppn);
+				ppns[numResident++] = pageTable[i].ppn;
+			}
+
+			if (swapSlots[i] != -1)
+				VMKernel.swapFile.free(swapSlots[i]);
+		}
+
+		VMKernel.pagingLock.release();
+
+		UserKernel.releasePages(ppns, 0, numResident);
+		pageTable = null;
+		pageSections = null;
+		swapSlots = null;
+	}
+
+	/**
+	 * Give this newly created process the same address space as the specified
+	 * process. Resident pages that can be written are shared copy-on-write,
+	 * and pages in swap share the parent's swap slots. Every other page,
+	 * including the read-only sections, is loaded on demand from this
+	 * process's own handle on the executable.
+	 * 
+	 * @return <tt>true</tt> if successful.
+	 */
+	protected boolean cloneAddressSpace(UserProcess parent) {
+		VMProcess vmParent = (VMProcess) parent;
+
+		OpenFile executable = ThreadedKernel.fileSystem.open(coffName, false);
+		if (executable == null) {
+			Lib.debug(dbgProcess, "\topen failed");
+			return false;
+		}
+
+		try {
+			coff = new Coff(executable);
+		}
+		catch (EOFException e) {
+			executable.close();
+			Lib.debug(dbgProcess, "\tcoff load failed");
+			return false;
+		}
+
+		if (!loadSections())
+			return false;
+
+		copyOnWrite = new boolean[numPages];
+		if (vmParent.copyOnWrite == null)
+			vmParent.copyOnWrite = new boolean[numPages];
+
+		VMKernel.pagingLock.acquire();
+
+		// the parent's TLB holds writable translations for the pages about
+		// to be shared, so bring its page table up to date and flush it
+		Processor processor = Machine.processor();
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			vmParent.syncTLBEntry(processor.readTLBEntry(i));
+			processor.writeTLBEntry(i, new TranslationEntry());
+		}
+
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			TranslationEntry entry = vmParent.pageTable[vpn];
+
+			if (vmParent.swapSlots[vpn] != -1) {
+				swapSlots[vpn] = vmParent.swapSlots[vpn];
+				VMKernel.swapFile.share(swapSlots[vpn]);
+			}
+
+			if (!entry.valid
+					|| (entry.readOnly && !vmParent.copyOnWrite[vpn]))
+				continue;
+
+			Vector<VMProcess> sharers = VMKernel.sharedPages.get(entry.ppn);
+			if (sharers == null) {
+				sharers = new Vector<VMProcess>();
+				sharers.add(vmParent);
+				VMKernel.sharedPages.put(entry.ppn, sharers);
+
+				entry.readOnly = true;
+				vmParent.copyOnWrite[vpn] = true;
+			}
+
+			sharers.add(this);
+			copyOnWrite[vpn] = true;
+
+			pageTable[vpn].ppn = entry.ppn;
+			pageTable[vpn].valid = true;
+			pageTable[vpn].readOnly = true;
+			pageTable[vpn].dirty = entry.dirty;
+		}
+
+		VMKernel.pagingLock.release();
+
+		return true;
+	}
+
+	/**
+	 * Give this process its own writable copy of a page shared copy-on-write.
+	 * If no physical page is free for the copy, one is taken from some
+	 * process by <tt>VMKernel.evictPage()</tt>, which may turn out to be the
+	 * shared page itself; the page is then read back as a private page. The
+	 * same happens if the shared page was paged out while this process
+	 * waited for the paging lock.
+	 */
+	protected boolean breakCopyOnWrite(int vpn) {
+		VMKernel.pagingLock.acquire();
+
+		TranslationEntry entry = pageTable[vpn];
+		boolean broken = true;
+
+		if (!entry.valid) {
+			// paging the shared page out left every sharer a private page
+			broken = pageIn(entry);
+		}
+		else if (isCopyOnWrite(vpn)) {
+			int sharedPPN = entry.ppn;
+
+			if (VMKernel.sharedPages.get(sharedPPN).size() > 1) {
+				int ppn = UserKernel.allocatePage();
+				if (ppn == -1)
+					ppn = VMKernel.evictPage();
+
+				if (ppn == -1) {
+					Lib.debug(dbgVM, "\tno page could be freed to copy vpn "
+							+ vpn);
+					broken = false;
+				}
+				else if (!isCopyOnWrite(vpn)) {
+					UserKernel.releasePage(ppn);
+					broken = pageIn(entry);
+				}
+				else {
+					copyPage(sharedPPN, ppn);
+					leaveSharedPage(vpn);
+
+					entry.ppn = ppn;
+					entry.valid = true;
+					VMKernel.invertedPageTable.insert(pid, entry);
+				}
+			}
+			else {
+				// every other process has copied the page or exited
+				VMKernel.sharedPages.remove(sharedPPN);
+			}
+
+			if (broken) {
+				entry.readOnly = false;
+				entry.used = true;
+				entry.dirty = true;
+				copyOnWrite[vpn] = false;
+
+				UserKernel.numCopyOnWriteFaults++;
+			}
+		}
+
+		VMKernel.pagingLock.release();
+
+		// drop the read-only translation, so the next access reloads it
+		invalidateTLBEntry(vpn);
+
+		return broken;
+	}
+
+	/**
+	 * Stop sharing a page shared copy-on-write, leaving this process's page
+	 * table entry for it alone. If the inverted page table held this
+	 * process's entry for the page, it is replaced with another sharer's.
+	 * Called with the paging lock held.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return <tt>true</tt> if no process shares the page any more, so that
+	 * it can be freed.
+	 */
+	private boolean leaveSharedPage(int vpn) {
+		int ppn = pageTable[vpn].ppn;
+
+		Vector<VMProcess> sharers = VMKernel.sharedPages.get(ppn);
+		sharers.remove(this);
+
+		if (VMKernel.invertedPageTable.getEntry(ppn) == pageTable[vpn]) {
+			VMKernel.invertedPageTable.remove(ppn);
+
+			if (!sharers.isEmpty()) {
+				VMProcess holder = sharers.firstElement();
+				VMKernel.invertedPageTable.insert(holder.pid,
+						holder.pageTable[vpn]);
+			}
+		}
+
+		if (!sharers.isEmpty())
+			return false;
+
+		VMKernel.sharedPages.remove(ppn);
+		return true;
+	}
+
+	/**
+	 * Return the page table entry for the specified virtual page, loading the
+	 * page first if it has not been touched yet, so that system calls can
+	 * read and write pages the program itself has not used.
+	 */
+	protected TranslationEntry getTranslationEntry(int vpn, boolean isWrite) {
+		if (translating) {
+			boolean mayFault = firstOfTranslation;
+			firstOfTranslation = false;
+
+			if (!mayFault && (!isResident(vpn) || isWrite
+					&& isCopyOnWrite(vpn)))
+				return null;
+		}
+
+		if (!handlePageFault(vpn))
+			return null;
+
+		return super.getTranslationEntry(vpn, isWrite);
+	}
+
+	/**
+	 * Resolve a range of this process's virtual memory into physical runs.
+	 * Only the first page of the range is brought in if it is not resident:
+	 * bringing a page in can block, and a page translated before it could be
+	 * paged out in the meantime. The rest of the range is translated as far
+	 * as it is resident, and callers translate again from where it stops.
+	 */
+	public int translateVirtualMemory(int vaddr, int length, boolean isWrite,
+			PhysicalExtents extents) {
+		translating = true;
+		firstOfTranslation = true;
+
+		int amount = super.translateVirtualMemory(vaddr, length, isWrite,
+				extents);
+
+		translating = false;
+
+		return amount;
+	}
+
+	private boolean isResident(int vpn) {
+		return pageTable != null && vpn >= 0 && vpn < pageTable.length
+				&& pageTable[vpn] != null && pageTable[vpn].valid;
 	}
 
 	/**
@@ -60,12 +354,282 @@ public class VMProcess extends UserProcess {
 		Processor processor = Machine.processor();
 
 		switch (cause) {
+		case Processor.exceptionTLBMiss:
+			if (!handleTLBMiss(processor.readRegister(Processor.regBadVAddr)))
+				super.handleException(cause);
+			break;
+
 		default:
 			super.handleException(cause);
 			break;
 		}
 	}
 
+	/**
+	 * Load the translation for the specified virtual address into the TLB,
+	 * replacing an invalid entry if there is one, and otherwise replacing the
+	 * entries in turn. The translation is looked up in the kernel's inverted
+	 * page table; if the page is not in physical memory, it is loaded first.
+	 * 
+	 * @param vaddr the virtual address that missed in the TLB.
+	 * @return <tt>false</tt> if the address is not mapped by this process, or
+	 * the page could not be loaded.
+	 */
+	private boolean handleTLBMiss(int vaddr) {
+		int vpn = Processor.pageFromAddress(vaddr);
+
+		TranslationEntry entry = VMKernel.invertedPageTable.lookup(pid, vpn);
+		if (entry == null) {
+			if (!handlePageFault(vpn))
+				return false;
+
+			entry = pageTable[vpn];
+		}
+
+		Processor processor = Machine.processor();
+
+		int victim = -1;
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			if (!processor.readTLBEntry(i).valid) {
+				victim = i;
+				break;
+			}
+		}
+
+		if (victim == -1) {
+			victim = nextVictim;
+			nextVictim = (nextVictim + 1) % processor.getTLBSize();
+			syncTLBEntry(processor.readTLBEntry(victim));
+		}
+
+		processor.writeTLBEntry(victim, entry);
+		return true;
+	}
+
+	/**
+	 * Make the specified virtual page resident if it is not already. If no
+	 * physical page is free, one is taken from some process by
+	 * <tt>VMKernel.evictPage()</tt>. A page that has been paged out is read
+	 * back from swap; otherwise a page from a COFF section is read from the
+	 * executable, and a stack or argument page is zero-filled.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return <tt>false</tt> if the page is not mapped by this process, or no
+	 * physical page could be found for it.
+	 */
+	protected boolean handlePageFault(int vpn) {
+		if (pageTable == null || vpn < 0 || vpn >= pageTable.length
+				|| pageTable[vpn] == null)
+			return false;
+
+		TranslationEntry entry = pageTable[vpn];
+		if (entry.valid)
+			return true;
+
+		VMKernel.pagingLock.acquire();
+		boolean loaded = pageIn(entry);
+		VMKernel.pagingLock.release();
+
+		return loaded;
+	}
+
+	private boolean pageIn(TranslationEntry entry) {
+		int vpn = entry.vpn;
+
+		int ppn = UserKernel.allocatePage();
+		if (ppn == -1)
+			ppn = VMKernel.evictPage();
+		if (ppn == -1) {
+			Lib.debug(dbgVM, "\tno page could be freed for vpn " + vpn);
+			return false;
+		}
+
+		CoffSection section = pageSections[vpn];
+		if (swapSlots[vpn] != -1) {
+			Lib.debug(dbgVM, "\tswapping in vpn " + vpn + " from slot "
+					+ swapSlots[vpn] + " into ppn " + ppn);
+			VMKernel.swapFile.read(swapSlots[vpn], ppn);
+		}
+		else if (section != null) {
+			Lib.debug(dbgVM, "\tloading vpn " + vpn + " from "
+					+ section.getName() + " into ppn " + ppn);
+			section.loadPage(vpn - section.getFirstVPN(), ppn);
+		}
+		else {
+			Lib.debug(dbgVM, "\tzero-filling vpn " + vpn + " in ppn " + ppn);
+			Arrays.fill(Machine.processor().getMemory(), ppn * pageSize,
+					(ppn + 1) * pageSize, (byte) 0);
+			Machine.processor().invalidatePage(ppn);
+		}
+
+		// the page is about to be used, so do not make it the next victim
+		entry.ppn = ppn;
+		entry.valid = true;
+		entry.used = true;
+		entry.dirty = false;
+		VMKernel.invertedPageTable.insert(pid, entry);
+
+		VMKernel.numPageFaults++;
+
+		return true;
+	}
+
+	/**
+	 * Page out the specified resident page of this process, leaving its
+	 * physical page free for reuse. The page is written to swap only if it is
+	 * dirty; a clean page can be read back from the slot it was last written
+	 * to, or else from the executable or as zeros. Called by
+	 * <tt>VMKernel.evictPage()</tt> with the paging lock held.
+	 * 
+	 * @param entry this process's page table entry for the page.
+	 */
+	void pageOut(TranslationEntry entry) {
+		int vpn = entry.vpn;
+
+		if (isCopyOnWrite(vpn)) {
+			pageOutShared(entry);
+			return;
+		}
+
+		VMKernel.invertedPageTable.remove(entry.ppn);
+		entry.valid = false;
+		invalidateTLBEntry(vpn);
+
+		if (entry.dirty) {
+			Lib.debug(dbgVM, "\tswapping out vpn " + vpn + " from ppn "
+					+ entry.ppn);
+			swapSlots[vpn] = VMKernel.swapFile.write(swapSlots[vpn], entry.ppn);
+			entry.dirty = false;
+		}
+	}
+
+	/**
+	 * Page out a page shared copy-on-write, for every process sharing it. If
+	 * any of them has it dirty, it is written to a new swap slot that they
+	 * all share; afterwards the page is private to each of them again.
+	 * 
+	 * @param entry this process's page table entry for the page.
+	 */
+	private void pageOutShared(TranslationEntry entry) {
+		int vpn = entry.vpn;
+
+		VMKernel.invertedPageTable.remove(entry.ppn);
+		Vector<VMProcess> sharers = VMKernel.sharedPages.remove(entry.ppn);
+
+		boolean dirty = false;
+		for (VMProcess sharer : sharers)
+			dirty |= sharer.pageTable[vpn].dirty;
+
+		int slot = -1;
+		if (dirty) {
+			Lib.debug(dbgVM, "\tswapping out shared vpn " + vpn + " from ppn "
+					+ entry.ppn);
+			slot = VMKernel.swapFile.write(-1, entry.ppn);
+		}
+
+		for (VMProcess sharer : sharers) {
+			TranslationEntry sharerEntry = sharer.pageTable[vpn];
+			sharerEntry.valid = false;
+			sharerEntry.readOnly = false;
+			sharerEntry.dirty = false;
+			sharer.copyOnWrite[vpn] = false;
+			sharer.invalidateTLBEntry(vpn);
+
+			if (slot != -1) {
+				if (sharer.swapSlots[vpn] != -1)
+					VMKernel.swapFile.free(sharer.swapSlots[vpn]);
+
+				sharer.swapSlots[vpn] = slot;
+				if (sharer != sharers.firstElement())
+					VMKernel.swapFile.share(slot);
+			}
+		}
+	}
+
+	/**
+	 * Drop the translation for the specified virtual page from the TLB, if
+	 * this process is the one whose translations are in it.
+	 * 
+	 * @param vpn the virtual page number.
+	 */
+	private void invalidateTLBEntry(int vpn) {
+		// only the current process can have translations in the TLB
+		if (this != UserKernel.currentProcess())
+			return;
+
+		Processor processor = Machine.processor();
+
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			TranslationEntry tlbEntry = processor.readTLBEntry(i);
+			if (tlbEntry.valid && tlbEntry.vpn == vpn)
+				processor.writeTLBEntry(i, new TranslationEntry());
+		}
+	}
+
+	/**
+	 * Copy the used and dirty bits of every TLB entry back into the page
+	 * table, and clear the used bits in the TLB, so that the page table shows
+	 * which pages have been used since the last time this was called.
+	 */
+	void syncTLB() {
+		Processor processor = Machine.processor();
+
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			TranslationEntry entry = processor.readTLBEntry(i);
+			if (!entry.valid)
+				continue;
+
+			syncTLBEntry(entry);
+			entry.used = false;
+			processor.writeTLBEntry(i, entry);
+		}
+	}
+
+	/**
+	 * Return the process with the specified process ID.
+	 * 
+	 * @param pid the process ID.
+	 * @return the process, or <tt>null</tt> if there is none.
+	 */
+	static VMProcess getProcess(int pid) {
+		return (VMProcess) processPool.get(pid);
+	}
+
+	/**
+	 * Copy the used and dirty bits of a TLB entry back into the page table.
+	 * 
+	 * @param entry the TLB entry.
+	 */
+	private void syncTLBEntry(TranslationEntry entry) {
+		if (!entry.valid || pageTable == null || entry.vpn < 0
+				|| entry.vpn >= pageTable.length || pageTable[entry.vpn] == null)
+			return;
+
+		pageTable[entry.vpn].used |= entry.used;
+		pageTable[entry.vpn].dirty |= entry.dirty;
+	}
+
+	/**
+	 * The COFF section each virtual page is loaded from, or <tt>null</tt> for
+	 * the stack and argument pages.
+	 */
+	private CoffSection[] pageSections;
+
+	/**
+	 * The swap slot each virtual page was last written to, or -1 if it has
+	 * never been paged out.
+	 */
+	private int[] swapSlots;
+
+	/** Set while <tt>translateVirtualMemory()</tt> runs. */
+	private boolean translating = false;
+
+	/** Set until the first page of a translation has been looked up. */
+	private boolean firstOfTranslation;
+
+	/** The next TLB entry to replace when none are invalid. */
+	private int nextVictim = 0;
+
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';